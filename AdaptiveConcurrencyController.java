@@ -0,0 +1,197 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Additive-increase/multiplicative-decrease limit on concurrent S3 work, shared by every stream that uses the
+ * same client.
+ *
+ * Each successful call adds 1/limit, so the limit grows by one per round of calls, as long as the time per MB
+ * stays within twice the best seen recently. A throttling response (503 SlowDown and the like) halves the limit,
+ * at most once per cooldown so one burst of throttles counts as a single signal. Throttles are reported only by
+ * the client's {@link #throttleListener()}, which sees every throttled attempt, so each one is counted once. The
+ * limit is published through an {@link EmfMetricEmitter} whenever it drops and at most every few seconds
+ * otherwise, so it shows up in CloudWatch as the ConcurrencyLimit metric.
+ */
+public class AdaptiveConcurrencyController {
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyController.class);
+
+    private static final EmfMetricEmitter metricEmitter = new EmfMetricEmitter("Cat3Cat1Transfer", "Controller");
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double LATENCY_SMOOTHING = 0.1;
+    private static final double BASELINE_DECAY = 1.01;
+    private static final long DECREASE_COOLDOWN_MILLIS = 1_000;
+    private static final long METRIC_INTERVAL_MILLIS = 10_000;
+    private static final long BYTES_PER_MB = 1024L * 1024L;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicLong throttleCount = new AtomicLong();
+
+    private double limit;
+    private int inFlight;
+    private double smoothedMillisPerMb;
+    private double baselineMillisPerMb;
+    private long lastDecreaseAt;
+    private long lastMetricAt;
+    private int lastPublishedLimit = -1;
+
+    public AdaptiveConcurrencyController(String name, int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Concurrency limits must satisfy 1 <= min <= max");
+        }
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Returns true for the responses S3 uses to ask callers to slow down.
+     */
+    public static boolean isThrottle(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AmazonServiceException) {
+                AmazonServiceException serviceException = (AmazonServiceException) cause;
+                if (RetryUtils.isThrottlingException(serviceException) || serviceException.getStatusCode() == 503) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs one S3 call of about {@code bytes} under the limit: waits for a slot, runs the call and feeds its
+     * duration back into the limit. A throttled call has already been reported by the client's throttle listener.
+     */
+    public <T> T call(long bytes, S3Call<T> s3Call) throws IOException, InterruptedException {
+        acquire();
+        long start = System.currentTimeMillis();
+        try {
+            T result = s3Call.call();
+            onSuccess(bytes, System.currentTimeMillis() - start);
+            return result;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Waits until a slot is free under the current limit.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Records a call that finished without throttling, {@code bytes} in {@code elapsedMillis}.
+     */
+    public void onSuccess(long bytes, long elapsedMillis) {
+        double millisPerMb = bytes > 0 ? elapsedMillis * (double) BYTES_PER_MB / bytes : elapsedMillis;
+        synchronized (this) {
+            smoothedMillisPerMb = smoothedMillisPerMb == 0 ? millisPerMb
+                    : LATENCY_SMOOTHING * millisPerMb + (1 - LATENCY_SMOOTHING) * smoothedMillisPerMb;
+            baselineMillisPerMb = baselineMillisPerMb == 0 ? smoothedMillisPerMb
+                    : Math.min(baselineMillisPerMb * BASELINE_DECAY, smoothedMillisPerMb);
+
+            if (smoothedMillisPerMb <= baselineMillisPerMb * LATENCY_TOLERANCE && limit < maxLimit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+                notifyAll();
+            }
+        }
+        publishLimit(false);
+    }
+
+    /**
+     * Records a throttling response. Halves the limit unless it was already cut within the cooldown.
+     */
+    public void onThrottle() {
+        throttleCount.incrementAndGet();
+        boolean decreased = false;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - lastDecreaseAt >= DECREASE_COOLDOWN_MILLIS) {
+                limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+                lastDecreaseAt = now;
+                decreased = true;
+            }
+        }
+        if (decreased) {
+            logger.warn("S3 throttled {}; concurrency limit lowered to {}", name, getLimit());
+            publishLimit(true);
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Number of throttling responses seen so far, for callers that want to notice throttling during their own
+     * longer-running work.
+     */
+    public long getThrottleCount() {
+        return throttleCount.get();
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * A request handler that reports every throttled attempt of a client to this controller, including the ones
+     * the SDK retries on its own before the caller ever sees an exception.
+     */
+    public RequestHandler2 throttleListener() {
+        return new RequestHandler2() {
+            @Override
+            public void afterAttempt(HandlerAfterAttemptContext context) {
+                if (context.getException() != null && isThrottle(context.getException())) {
+                    onThrottle();
+                }
+            }
+        };
+    }
+
+    public interface S3Call<T> {
+        T call() throws IOException;
+    }
+
+    private void publishLimit(boolean force) {
+        int currentLimit;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            currentLimit = (int) limit;
+            if (currentLimit == lastPublishedLimit || (!force && now - lastMetricAt < METRIC_INTERVAL_MILLIS)) {
+                return;
+            }
+            lastPublishedLimit = currentLimit;
+            lastMetricAt = now;
+        }
+
+        metricEmitter.emitCount(name, "ConcurrencyLimit", currentLimit);
+    }
+}
@@ -0,0 +1,26 @@
+package com.capitalone.gallery.utils;
+
+/**
+ * Progress of a {@link PrefixBackfillEngine} run, kept per listed prefix so a restarted backfill skips the
+ * prefixes it finished and resumes the others after the last page it completed.
+ */
+public interface BackfillCheckpointStore {
+
+    /**
+     * Returns true once every key under {@code prefix} has been processed.
+     */
+    boolean isCompleted(String bucket, String prefix);
+
+    /**
+     * Returns the key to resume listing {@code prefix} after, or null to list it from the start.
+     */
+    String getStartAfter(String bucket, String prefix);
+
+    /**
+     * Records that every key and sub-prefix under {@code prefix} up to and including {@code startAfter} has
+     * been processed.
+     */
+    void saveStartAfter(String bucket, String prefix, String startAfter);
+
+    void markCompleted(String bucket, String prefix);
+}
@@ -0,0 +1,328 @@
+package com.capitalone.gallery.utils;
+
+import com.capitalone.gallery.utils.SizeAwareScheduler.SchedulePlan;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Processes a batch of bundle records concurrently through {@link Cat3Cat1TransferUtils#doActionForTags}.
+ * A bounded number of records run at once, and a global budget caps the total size of the bundles
+ * in flight, so a burst of large bundles cannot all start together. A bundle larger than the whole budget
+ * still runs, alone.
+ *
+ * With a {@link SizeAwareScheduler} the records are started in the scheduler's order and the ones that cannot
+ * finish in the remaining invocation time are returned as deferred without being started. Transfers that were
+ * started but fall behind are stopped through an {@link InvocationTimeBudget} and returned as handed off. A transfer
+ * that is handed off without a checkpoint starts over in its continuation, unless it was projected to need more than
+ * a whole invocation. That one, and one that has started over {@code maxTransferRestarts} times, is returned as
+ * {@link Cat3Cat1TransferUtils#TOO_LARGE_FOR_INVOCATION} for the dead-letter queue rather than being handed off
+ * again to upload the whole bundle once more.
+ *
+ * The number of bundles in flight starts at {@code concurrency} and is adjusted by an
+ * {@link AdaptiveConcurrencyController} between 1 and {@code maxConcurrency}: it backs off when either pooled S3
+ * client is throttled while a bundle runs and grows while bundles keep their transfer rate.
+ *
+ * With an {@link IdempotencyStore} a record whose exact object version was already processed, or is being
+ * processed by another attempt, is returned as a duplicate before any S3 call is made.
+ */
+public class BatchTransferProcessor {
+    private static final Logger logger = LoggerFactory.getLogger(BatchTransferProcessor.class);
+
+    public static final int DEFAULT_BATCH_CONCURRENCY = 8;
+    public static final int DEFAULT_IN_FLIGHT_BUDGET_MB = 2048;
+    public static final int DEFAULT_IDEMPOTENCY_CACHE_SIZE = 10_000;
+    public static final int DEFAULT_IDEMPOTENCY_CLAIM_TTL_SECONDS = 900;
+    public static final int DEFAULT_IDEMPOTENCY_COMPLETED_TTL_HOURS = 14 * 24;
+    public static final int DEFAULT_MAX_TRANSFER_RESTARTS = 3;
+    private static final long MB = 1024L * 1024L;
+
+    private final Cat3Cat1TransferUtils transferUtils;
+    private final int concurrency;
+    private final int inFlightBudgetMb;
+    private final Semaphore inFlightBudget;
+    private final ExecutorService executor;
+    private final SizeAwareScheduler scheduler;
+    private final AdaptiveConcurrencyController bundleConcurrency;
+    private final IdempotencyStore idempotencyStore;
+    private final int maxTransferRestarts;
+
+    public BatchTransferProcessor(Cat3Cat1TransferUtils transferUtils, int concurrency, int inFlightBudgetMb) {
+        this(transferUtils, concurrency, concurrency, inFlightBudgetMb, null);
+    }
+
+    /**
+     * @param scheduler orders and defers the records of each batch, or null to start them in input order
+     */
+    public BatchTransferProcessor(Cat3Cat1TransferUtils transferUtils, int concurrency, int maxConcurrency,
+                                  int inFlightBudgetMb, SizeAwareScheduler scheduler) {
+        this(transferUtils, concurrency, maxConcurrency, inFlightBudgetMb, scheduler, null);
+    }
+
+    /**
+     * @param idempotencyStore drops duplicate deliveries of the same object version, or null to process every
+     *                         record
+     */
+    public BatchTransferProcessor(Cat3Cat1TransferUtils transferUtils, int concurrency, int maxConcurrency,
+                                  int inFlightBudgetMb, SizeAwareScheduler scheduler,
+                                  IdempotencyStore idempotencyStore) {
+        this(transferUtils, concurrency, maxConcurrency, inFlightBudgetMb, scheduler, idempotencyStore,
+                DEFAULT_MAX_TRANSFER_RESTARTS);
+    }
+
+    /**
+     * @param maxTransferRestarts how many times a transfer handed off without a checkpoint may start over before
+     *                            it is dead-lettered
+     */
+    public BatchTransferProcessor(Cat3Cat1TransferUtils transferUtils, int concurrency, int maxConcurrency,
+                                  int inFlightBudgetMb, SizeAwareScheduler scheduler,
+                                  IdempotencyStore idempotencyStore, int maxTransferRestarts) {
+        if (concurrency < 1 || maxConcurrency < concurrency || inFlightBudgetMb < 1) {
+            throw new IllegalArgumentException("Batch concurrency and in-flight budget must be positive and the "
+                    + "maximum concurrency at least the initial one");
+        }
+        this.transferUtils = transferUtils;
+        this.concurrency = concurrency;
+        this.inFlightBudgetMb = inFlightBudgetMb;
+        this.inFlightBudget = new Semaphore(inFlightBudgetMb, true);
+        this.executor = Executors.newFixedThreadPool(maxConcurrency,
+                MultipartUploadEngine.daemonThreadFactory("bundle-batch"));
+        this.scheduler = scheduler;
+        this.bundleConcurrency = new AdaptiveConcurrencyController("bundles", concurrency, 1, maxConcurrency);
+        this.idempotencyStore = idempotencyStore;
+        this.maxTransferRestarts = maxTransferRestarts;
+    }
+
+    /**
+     * Builds a processor from the BATCH_CONCURRENCY, BATCH_MAX_CONCURRENCY and BATCH_IN_FLIGHT_MB environment
+     * variables, falling back to the defaults when they are not set. Batches are scheduled shortest bundle first
+     * unless BATCH_SCHEDULE says otherwise. Duplicate events are tracked in the IDEMPOTENCY_DIR directory when it
+     * is set, for IDEMPOTENCY_COMPLETED_TTL_HOURS after completion, and in an in-memory cache of
+     * IDEMPOTENCY_CACHE_SIZE keys otherwise. A transfer may start over MAX_TRANSFER_RESTARTS times.
+     */
+    public static BatchTransferProcessor fromEnvironment(Cat3Cat1TransferUtils transferUtils) {
+        return fromEnvironment(transferUtils, SizeAwareScheduler.Strategy.SHORTEST_FIRST);
+    }
+
+    public static BatchTransferProcessor fromEnvironment(Cat3Cat1TransferUtils transferUtils,
+                                                         SizeAwareScheduler.Strategy defaultStrategy) {
+        int concurrency = MultipartUploadEngine.intFromEnvironment("BATCH_CONCURRENCY", DEFAULT_BATCH_CONCURRENCY);
+        return new BatchTransferProcessor(transferUtils, concurrency,
+                MultipartUploadEngine.intFromEnvironment("BATCH_MAX_CONCURRENCY", 2 * concurrency),
+                MultipartUploadEngine.intFromEnvironment("BATCH_IN_FLIGHT_MB", DEFAULT_IN_FLIGHT_BUDGET_MB),
+                SizeAwareScheduler.fromEnvironment(defaultStrategy), idempotencyStoreFromEnvironment(),
+                MultipartUploadEngine.intFromEnvironment("MAX_TRANSFER_RESTARTS", DEFAULT_MAX_TRANSFER_RESTARTS));
+    }
+
+    private static IdempotencyStore idempotencyStoreFromEnvironment() {
+        long claimTtlMillis = 1000L * MultipartUploadEngine.intFromEnvironment("IDEMPOTENCY_CLAIM_TTL_SECONDS",
+                DEFAULT_IDEMPOTENCY_CLAIM_TTL_SECONDS);
+        String idempotencyDirectory = System.getenv("IDEMPOTENCY_DIR");
+        if (idempotencyDirectory == null || idempotencyDirectory.trim().isEmpty()) {
+            return new LruIdempotencyStore(MultipartUploadEngine.intFromEnvironment("IDEMPOTENCY_CACHE_SIZE",
+                    DEFAULT_IDEMPOTENCY_CACHE_SIZE), claimTtlMillis);
+        }
+
+        try {
+            logger.info("Bundle events are deduplicated in {}", idempotencyDirectory);
+            return new FileIdempotencyStore(Paths.get(idempotencyDirectory.trim()), claimTtlMillis,
+                    3_600_000L * MultipartUploadEngine.intFromEnvironment("IDEMPOTENCY_COMPLETED_TTL_HOURS",
+                            DEFAULT_IDEMPOTENCY_COMPLETED_TTL_HOURS));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open idempotency directory " + idempotencyDirectory, e);
+        }
+    }
+
+    /**
+     * Processes every record and returns one result per record, in the same order as {@code records}.
+     * A failure of one record never affects the others.
+     */
+    public List<BundleResult> process(List<BundleRecord> records) {
+        return process(records, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #process(List)}, deferring the records that the scheduler estimates cannot finish within
+     * {@code remainingMillis} and handing off the transfers that are projected to run past it.
+     */
+    public List<BundleResult> process(List<BundleRecord> records, long remainingMillis) {
+        InvocationTimeBudget budget = InvocationTimeBudget.fromEnvironment(remainingMillis);
+        List<BundleRecord> plannedRecords = records;
+        List<Integer> startOrder = new ArrayList<>(records.size());
+        List<Integer> deferred = Collections.emptyList();
+        if (scheduler == null) {
+            for (int i = 0; i < records.size(); i++) {
+                startOrder.add(i);
+            }
+        } else {
+            SchedulePlan plan = scheduler.plan(records, bundleConcurrency.getLimit(), remainingMillis);
+            plannedRecords = plan.getRecords();
+            startOrder = plan.getScheduledIndexes();
+            deferred = plan.getDeferredIndexes();
+        }
+
+        List<Future<BundleResult>> pendingResults = new ArrayList<>(Collections.nCopies(records.size(), null));
+        for (Integer index : startOrder) {
+            BundleRecord record = plannedRecords.get(index);
+            pendingResults.set(index, executor.submit(() -> processRecord(record, budget)));
+        }
+
+        BundleResult[] results = new BundleResult[records.size()];
+        for (Integer index : deferred) {
+            results[index] = BundleResult.deferred(plannedRecords.get(index));
+        }
+        int failures = 0;
+        int handedOff = 0;
+        for (Integer index : startOrder) {
+            BundleResult result;
+            try {
+                result = pendingResults.get(index).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result = BundleResult.failed(plannedRecords.get(index), e);
+            } catch (ExecutionException e) {
+                result = BundleResult.failed(plannedRecords.get(index), e);
+            }
+            if (result.isHandedOff()) {
+                handedOff++;
+            } else if (!result.isSuccessful()) {
+                failures++;
+            }
+            results[index] = result;
+        }
+
+        logger.info("Processed batch of {} bundles: {} succeeded, {} failed, {} handed off, {} deferred",
+                records.size(), startOrder.size() - failures - handedOff, failures, handedOff, deferred.size());
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Claims the record's idempotency key, transfers it and then completes or releases the claim. Handed-off and
+     * failed records release it, so their continuation or redelivery can claim it again.
+     */
+    private BundleResult processRecord(BundleRecord record, InvocationTimeBudget budget) {
+        String idempotencyKey = idempotencyStore == null ? null : record.idempotencyKey();
+        if (idempotencyKey != null && !tryClaim(record, idempotencyKey)) {
+            logger.info("Skipping duplicate event for {}", record);
+            return BundleResult.duplicate(record);
+        }
+
+        BundleResult result = limitRestarts(transferRecord(record, budget));
+        if (idempotencyKey != null) {
+            try {
+                if (result.isSuccessful()) {
+                    idempotencyStore.markCompleted(idempotencyKey);
+                } else {
+                    idempotencyStore.release(idempotencyKey);
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Unable to record the outcome of {} for deduplication", record, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Dead-letters a transfer handed off to start over once its record has already started over
+     * {@code maxTransferRestarts} times.
+     */
+    private BundleResult limitRestarts(BundleResult result) {
+        BundleRecord record = result.getRecord();
+        if (!result.isRestartHandOff() || record.getRestartAttempts() < maxTransferRestarts) {
+            return result;
+        }
+        logger.error("Giving up on {} after it started over {} times without finishing", record,
+                record.getRestartAttempts());
+        return BundleResult.completed(record, Cat3Cat1TransferUtils.TOO_LARGE_FOR_INVOCATION);
+    }
+
+    /**
+     * Claims the key, processing the record anyway when the store cannot be reached: a repeated transfer is
+     * better than a lost one.
+     */
+    private boolean tryClaim(BundleRecord record, String idempotencyKey) {
+        try {
+            return idempotencyStore.tryClaim(idempotencyKey);
+        } catch (RuntimeException e) {
+            logger.warn("Unable to check {} for duplicates; processing it", record, e);
+            return true;
+        }
+    }
+
+    private BundleResult transferRecord(BundleRecord record, InvocationTimeBudget budget) {
+        int budgetCost = budgetCost(record);
+        try {
+            inFlightBudget.acquire(budgetCost);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return BundleResult.failed(record, e);
+        }
+
+        try {
+            bundleConcurrency.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            inFlightBudget.release(budgetCost);
+            return BundleResult.failed(record, e);
+        }
+
+        long throttlesBefore = clientThrottleCount();
+        long start = System.currentTimeMillis();
+        try {
+            BundleResult result = BundleResult.completed(record,
+                    transferUtils.doActionForTags(record.getBucket(), record.getKey(), budget));
+            long elapsedMillis = System.currentTimeMillis() - start;
+            boolean transferred = result.isSuccessful()
+                    && !Cat3Cat1TransferUtils.NO_ACTION_TAKEN.equals(result.getOutcome())
+                    && !Cat3Cat1TransferUtils.CAT2_ALREADY_PRESENT.equals(result.getOutcome());
+            if (clientThrottleCount() > throttlesBefore) {
+                bundleConcurrency.onThrottle();
+            } else if (transferred) {
+                bundleConcurrency.onSuccess(record.getSize(), elapsedMillis);
+            }
+            if (scheduler != null && transferred && record.hasKnownSize()) {
+                scheduler.recordTransfer(record.getSize(), elapsedMillis);
+            }
+            return result;
+        } catch (Exception e) {
+            logger.error("Exception occurred while processing {}", record, e);
+            if (AdaptiveConcurrencyController.isThrottle(e)) {
+                bundleConcurrency.onThrottle();
+            }
+            return BundleResult.failed(record, e);
+        } finally {
+            bundleConcurrency.release();
+            inFlightBudget.release(budgetCost);
+        }
+    }
+
+    public AdaptiveConcurrencyController getBundleConcurrency() {
+        return bundleConcurrency;
+    }
+
+    private static long clientThrottleCount() {
+        return S3ClientPool.getSourceConcurrency().getThrottleCount()
+                + S3ClientPool.getCat2Concurrency().getThrottleCount();
+    }
+
+    /**
+     * A record's share of the in-flight budget in MB. Records of unknown size are charged an even share of
+     * the budget.
+     */
+    private int budgetCost(BundleRecord record) {
+        long costMb = record.hasKnownSize() ? (record.getSize() + MB - 1) / MB : inFlightBudgetMb / concurrency;
+        return (int) Math.max(1, Math.min(inFlightBudgetMb, costMb));
+    }
+}
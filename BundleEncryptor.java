@@ -0,0 +1,38 @@
+package com.capitalone.gallery.utils;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * PGP-encrypts a bundle from a source stream into a target stream, closing the target when done.
+ *
+ * By default bundles are encrypted by {@link SimplePGPUtilEncryptor}, with the key and settings CAT2 consumers
+ * already decrypt, and the whole encrypted bundle is held in memory. Setting PGP_STREAMING_ENCRYPTION to true
+ * switches to {@link StreamingPGPEncryptor}, which keeps memory bounded but has its own key resource and algorithm
+ * settings. It is only used once {@link StreamingPGPEncryptor#isCompatibleWithDefault()} has confirmed that it
+ * encrypts for the same recipient key as SimplePGPUtil; otherwise SimplePGPUtil is used.
+ */
+public interface BundleEncryptor {
+
+    /**
+     * Encrypts {@code source} into {@code target}, naming the content {@code fileName}. Returns the number of
+     * source bytes read.
+     */
+    long encrypt(InputStream source, OutputStream target, String fileName) throws Exception;
+
+    /**
+     * True when output is written to the target while the source is read, false when the whole encrypted bundle is
+     * held in memory before any of it is written.
+     */
+    boolean isStreaming();
+
+    static BundleEncryptor fromEnvironment() throws Exception {
+        if (Boolean.parseBoolean(System.getenv("PGP_STREAMING_ENCRYPTION"))) {
+            StreamingPGPEncryptor streamingEncryptor = StreamingPGPEncryptor.fromClasspath();
+            if (streamingEncryptor.isCompatibleWithDefault()) {
+                return streamingEncryptor;
+            }
+        }
+        return SimplePGPUtilEncryptor.INSTANCE;
+    }
+}
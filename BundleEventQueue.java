@@ -0,0 +1,29 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+
+/**
+ * A queue of bundle event messages with SQS semantics: received messages stay invisible until the batch is
+ * completed, and messages reported as failed become visible again for redelivery. Lets the consumer be driven
+ * by a local stand-in as well as by the Lambda SQS event source.
+ */
+public interface BundleEventQueue {
+
+    /**
+     * Enqueues a message, normally an S3 event notification in JSON.
+     */
+    void send(String messageBody);
+
+    /**
+     * Receives up to {@code maxMessages} visible messages as one SQS event. The event has no records when the
+     * queue is empty.
+     */
+    SQSEvent receive(int maxMessages);
+
+    /**
+     * Completes a received batch: deletes every message that is not listed in the response's
+     * batchItemFailures and makes the listed ones visible again.
+     */
+    void complete(SQSEvent event, SQSBatchResponse response);
+}
@@ -0,0 +1,64 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.Tag;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Gathers a {@link BundleSnapshot} with the GetObjectTagging and HeadObject round trips in flight at the
+ * same time, while the file name is classified against the pattern sets on the calling thread. Its threads also
+ * run the HEAD requests that size a whole batch at once for {@link SizeAwareScheduler}.
+ */
+public class BundleMetadataPrefetcher {
+    public static final int DEFAULT_PREFETCH_THREADS = 16;
+
+    private final ExecutorService executor;
+
+    public BundleMetadataPrefetcher(int threads) {
+        this.executor = Executors.newFixedThreadPool(threads,
+                MultipartUploadEngine.daemonThreadFactory("s3-metadata-prefetch"));
+    }
+
+    /**
+     * Builds a prefetcher sized by the PREFETCH_THREADS environment variable, falling back to the default
+     * when it is not set.
+     */
+    public static BundleMetadataPrefetcher fromEnvironment() {
+        return new BundleMetadataPrefetcher(MultipartUploadEngine.intFromEnvironment("PREFETCH_THREADS",
+                DEFAULT_PREFETCH_THREADS));
+    }
+
+    /**
+     * Starts a HeadObject request for the object on the prefetch threads.
+     */
+    public CompletableFuture<ObjectMetadata> headObject(AmazonS3 amazonS3, String s3bucket, String s3ObjectKey) {
+        return CompletableFuture.supplyAsync(() -> amazonS3.getObjectMetadata(s3bucket, s3ObjectKey), executor);
+    }
+
+    public BundleSnapshot prefetch(AmazonS3 amazonS3, TransferConfig config, String s3bucket, String s3ObjectKey) {
+        CompletableFuture<List<Tag>> tags = CompletableFuture.supplyAsync(
+                () -> TaggingUtils.getTagsForBundle(amazonS3, s3bucket, s3ObjectKey), executor);
+        CompletableFuture<ObjectMetadata> sourceMetadata = headObject(amazonS3, s3bucket, s3ObjectKey);
+
+        boolean ignoredForTransfer = config.getTransferIgnorePatterns().matches(s3ObjectKey);
+        boolean alreadyEncrypted = config.getEncryptionIgnorePatterns().matches(s3ObjectKey);
+
+        try {
+            return new BundleSnapshot(s3bucket, s3ObjectKey, tags.join(), sourceMetadata.join(), ignoredForTransfer,
+                    alreadyEncrypted);
+        } catch (CompletionException e) {
+            tags.cancel(true);
+            sourceMetadata.cancel(true);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
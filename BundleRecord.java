@@ -0,0 +1,91 @@
+package com.capitalone.gallery.utils;
+
+/**
+ * One bundle to process, as delivered by an S3 event, an SQS message or a listing. The size is -1 when the
+ * source did not report it, and the version id and ETag are null. Restart attempts count the continuations of the
+ * record that had to start its transfer over.
+ */
+public final class BundleRecord {
+    public static final long UNKNOWN_SIZE = -1L;
+
+    private final String bucket;
+    private final String key;
+    private final long size;
+    private final String versionId;
+    private final String eTag;
+    private final int restartAttempts;
+
+    public BundleRecord(String bucket, String key) {
+        this(bucket, key, UNKNOWN_SIZE);
+    }
+
+    public BundleRecord(String bucket, String key, long size) {
+        this(bucket, key, size, null, null);
+    }
+
+    public BundleRecord(String bucket, String key, long size, String versionId, String eTag) {
+        this(bucket, key, size, versionId, eTag, 0);
+    }
+
+    public BundleRecord(String bucket, String key, long size, String versionId, String eTag, int restartAttempts) {
+        this.bucket = bucket;
+        this.key = key;
+        this.size = size;
+        this.versionId = versionId == null || versionId.isEmpty() ? null : versionId;
+        this.eTag = eTag == null || eTag.isEmpty() ? null : eTag.replace("\"", "");
+        this.restartAttempts = restartAttempts;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getVersionId() {
+        return versionId;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public int getRestartAttempts() {
+        return restartAttempts;
+    }
+
+    public BundleRecord withSize(long newSize) {
+        return new BundleRecord(bucket, key, newSize, versionId, eTag, restartAttempts);
+    }
+
+    public BundleRecord withRestartAttempts(int newRestartAttempts) {
+        return new BundleRecord(bucket, key, size, versionId, eTag, newRestartAttempts);
+    }
+
+    /**
+     * Identifies this exact version of the object, so deliveries of the same event share a key while an
+     * overwrite of the object gets a new one. Null when the ETag is unknown, since the version cannot be told
+     * apart then.
+     */
+    public String idempotencyKey() {
+        if (eTag == null) {
+            return null;
+        }
+        return bucket + "/" + key + "?versionId=" + (versionId == null ? "" : versionId) + "&etag=" + eTag;
+    }
+
+    public boolean hasKnownSize() {
+        return size >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "s3:" + bucket + "/" + key;
+    }
+}
@@ -0,0 +1,113 @@
+package com.capitalone.gallery.utils;
+
+/**
+ * The outcome of processing one {@link BundleRecord}. The outcome is one of the result strings from
+ * {@link Cat3Cat1TransferUtils}, {@link #DEFERRED} or {@link #DUPLICATE}; the error is set when processing threw
+ * instead of returning one. Deferred and handed-off records are not finished and need a continuation: another
+ * attempt at the same record, which resumes from the transfer's checkpoint where there is one. A transfer handed off
+ * without a checkpoint starts over, so its continuation carries one more restart attempt, and one that can never
+ * finish in an invocation is dead-lettered instead.
+ */
+public final class BundleResult {
+    public static final String DEFERRED = "Deferred: Not Enough Invocation Time Left to Transfer Bundle";
+    public static final String DUPLICATE = "Duplicate: Bundle Event Already Processed";
+
+    private final BundleRecord record;
+    private final String outcome;
+    private final Exception error;
+
+    private BundleResult(BundleRecord record, String outcome, Exception error) {
+        this.record = record;
+        this.outcome = outcome;
+        this.error = error;
+    }
+
+    public static BundleResult completed(BundleRecord record, String outcome) {
+        return new BundleResult(record, outcome, null);
+    }
+
+    public static BundleResult failed(BundleRecord record, Exception error) {
+        return new BundleResult(record, error.getClass().getSimpleName() + ": " + error.getMessage(), error);
+    }
+
+    /**
+     * A record that was not started because it could not finish in the time left. It is not successful, so a queue
+     * consumer hands it back for redelivery.
+     */
+    public static BundleResult deferred(BundleRecord record) {
+        return new BundleResult(record, DEFERRED, null);
+    }
+
+    /**
+     * A record skipped because the same object version was already processed. It counts as successful, so the
+     * duplicate delivery is acknowledged.
+     */
+    public static BundleResult duplicate(BundleRecord record) {
+        return new BundleResult(record, DUPLICATE, null);
+    }
+
+    public BundleRecord getRecord() {
+        return record;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public Exception getError() {
+        return error;
+    }
+
+    public boolean isSuccessful() {
+        return error == null
+                && !DEFERRED.equals(outcome)
+                && !isHandedOff()
+                && !Cat3Cat1TransferUtils.CAT2_MOVE_FAILURE.equals(outcome)
+                && !Cat3Cat1TransferUtils.VOLTRON_MOVE_FAILURE.equals(outcome)
+                && !Cat3Cat1TransferUtils.FAN_OUT_FAILURE.equals(outcome)
+                && !isDeadLetter();
+    }
+
+    public boolean isDeferred() {
+        return DEFERRED.equals(outcome);
+    }
+
+    public boolean isDuplicate() {
+        return DUPLICATE.equals(outcome);
+    }
+
+    public boolean isHandedOff() {
+        return Cat3Cat1TransferUtils.HANDED_OFF.equals(outcome) || isRestartHandOff();
+    }
+
+    /**
+     * True when the transfer was handed off without a checkpoint, so its continuation starts over.
+     */
+    public boolean isRestartHandOff() {
+        return Cat3Cat1TransferUtils.HANDED_OFF_TO_RESTART.equals(outcome);
+    }
+
+    /**
+     * True when the record can never be transferred in one invocation, so retrying it only repeats the same work.
+     */
+    public boolean isDeadLetter() {
+        return Cat3Cat1TransferUtils.TOO_LARGE_FOR_INVOCATION.equals(outcome);
+    }
+
+    public boolean needsContinuation() {
+        return isDeferred() || isHandedOff();
+    }
+
+    /**
+     * The record to process in a continuation: the same record, with its restart attempts counted when the
+     * transfer has to start over.
+     */
+    public BundleRecord continuationRecord() {
+        return isRestartHandOff() ? record.withRestartAttempts(record.getRestartAttempts() + 1) : record;
+    }
+
+    @Override
+    public String toString() {
+        return record + " -> " + outcome;
+    }
+}
@@ -0,0 +1,60 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.Tag;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything known about a source bundle before it is transferred: its tags, its HEAD metadata (size,
+ * ETag, content type) and how the configured pattern sets classify its file name. The routing decision and
+ * the transfer both start from this one snapshot.
+ */
+public final class BundleSnapshot {
+    private final String bucket;
+    private final String key;
+    private final List<Tag> tags;
+    private final ObjectMetadata sourceMetadata;
+    private final boolean ignoredForTransfer;
+    private final boolean alreadyEncrypted;
+
+    public BundleSnapshot(String bucket, String key, List<Tag> tags, ObjectMetadata sourceMetadata,
+                          boolean ignoredForTransfer, boolean alreadyEncrypted) {
+        this.bucket = bucket;
+        this.key = key;
+        this.tags = Collections.unmodifiableList(new ArrayList<>(tags));
+        this.sourceMetadata = sourceMetadata;
+        this.ignoredForTransfer = ignoredForTransfer;
+        this.alreadyEncrypted = alreadyEncrypted;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public List<Tag> getTags() {
+        return tags;
+    }
+
+    public ObjectMetadata getSourceMetadata() {
+        return sourceMetadata;
+    }
+
+    public long getContentLength() {
+        return sourceMetadata.getContentLength();
+    }
+
+    public boolean isIgnoredForTransfer() {
+        return ignoredForTransfer;
+    }
+
+    public boolean isAlreadyEncrypted() {
+        return alreadyEncrypted;
+    }
+}
@@ -1,163 +1,236 @@
 package com.capitalone.gallery.utils;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.DeleteObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.ObjectTagging;
-import com.amazonaws.services.s3.model.PutObjectRequest;
-import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.Tag;
-import gherkin.deps.com.google.gson.Gson;
-import gherkin.deps.com.google.gson.reflect.TypeToken;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Type;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Optional;
+import java.util.Random;
 import java.util.stream.Collectors;
 
 public class Cat3Cat1TransferUtils {
     private static final Logger logger = LoggerFactory.getLogger(Cat3Cat1TransferUtils.class);
 
     public enum TagBasedAction {
-        VOLTRON_COPY, CAT2_COPY, NONE
+        VOLTRON_COPY, CAT2_COPY, FAN_OUT, NONE
     }
 
     public static final String VOLTRON_MOVE_SUCCESS = "Success: Bundle Encrypted and Moved to Voltron Bucket";
     public static final String VOLTRON_MOVE_FAILURE = "Failure: Bundle Failed During Encryption / Move to Voltron Bucket";
     public static final String CAT2_MOVE_SUCCESS = "Success: Bundle Moved to CAT2 Bucket";
     public static final String CAT2_MOVE_FAILURE = "Failure: Bundle Failed During Move to CAT2 Bucket";
+    public static final String FAN_OUT_SUCCESS = "Success: Bundle Fanned Out to All Destinations";
+    public static final String FAN_OUT_FAILURE = "Failure: Bundle Failed During Fan-Out to One or More Destinations";
+    public static final String CAT2_ALREADY_PRESENT = "Success: Identical Bundle Already in CAT2 Bucket";
     public static final String NO_ACTION_TAKEN = "No Action Taken.";
-
-    public String doActionForTags(String s3bucket, String s3ObjectKey) {
-        AmazonS3 amazonS3 = AwsClientUtils.getAmazonS3Client();
-        List<Tag> tagsForBundle = TaggingUtils.getTagsForBundle(amazonS3, s3bucket, s3ObjectKey);
-
-        logger.info("Bundle tags present: {}", tagsForBundle.stream()
-                .map(t -> String.format("%s=%s", t.getKey(), t.getValue())).collect(Collectors.toList()));
-
-        TagBasedAction actionToTake = getActionToTake(s3ObjectKey, tagsForBundle);
-
-        if (actionToTake == TagBasedAction.VOLTRON_COPY) {
-            return doVoltronCopy(s3bucket, s3ObjectKey, tagsForBundle);
-        } else if (actionToTake == TagBasedAction.CAT2_COPY) {
-            return doEncryptAndCat3ToCat2Copy(s3bucket, s3ObjectKey, tagsForBundle);
-        } else {
-            return NO_ACTION_TAKEN;
+    public static final String HANDED_OFF = "Handed Off: Bundle Transfer Checkpointed for a Later Invocation";
+    public static final String HANDED_OFF_TO_RESTART = "Handed Off: Bundle Transfer Stopped to Start Over Later";
+    public static final String TOO_LARGE_FOR_INVOCATION = "Failure: Bundle Too Large to Transfer in One Invocation";
+
+    private static final MultipartUploadEngine uploadEngine = MultipartUploadEngine.fromEnvironment();
+    private static final ParallelRangeDownloader rangeDownloader = ParallelRangeDownloader.fromEnvironment();
+    private static final ServerSideCopier serverSideCopier = ServerSideCopier.fromEnvironment();
+    private static final BundleMetadataPrefetcher metadataPrefetcher = BundleMetadataPrefetcher.fromEnvironment();
+    private static final DestinationDedup destinationDedup = new DestinationDedup();
+    private static final ResumableTransfer resumableTransfer =
+            ResumableTransfer.fromEnvironment(uploadEngine, rangeDownloader);
+    private static final FanOutTransfer fanOutTransfer = FanOutTransfer.fromEnvironment(uploadEngine);
+
+    private static final String PRIMING_KEY = "CAT3_BUNDLE/priming-bundle.zip";
+
+    static {
+        // org.crac is optional at runtime; TransferPrimer is only loaded once it is known to be present
+        try {
+            Class.forName("org.crac.Core");
+            TransferPrimer.register();
+        } catch (ClassNotFoundException | LinkageError e) {
+            logger.info("org.crac is not on the classpath; checkpoint priming is disabled ({})", e.toString());
         }
     }
 
-    private String readResourceAsString(String filePath) {
-        try (InputStream is = getClass().getClassLoader().getResourceAsStream(filePath)) {
-            return IOUtils.toString(is, StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            logger.error("Exception occurred while trying to read config file {}: {}", filePath, e);
-            throw new RuntimeException();
-        }
+    private final TransferConfig config;
+    private final RoutingEvaluator routingEvaluator;
+
+    public Cat3Cat1TransferUtils() {
+        this(TransferConfig.get());
     }
 
-    private List<String> convertJsonArrayToStringList(String jsonFilePath){
-        Gson converter = new Gson();
-        String jsonString = readResourceAsString(jsonFilePath);
-        Type type = new TypeToken<List<String>>(){}.getType();
+    public Cat3Cat1TransferUtils(TransferConfig config) {
+        this.config = config;
+        this.routingEvaluator = new RoutingEvaluator(config);
+    }
 
-        return converter.fromJson(jsonString, type);
+    public String doActionForTags(String s3bucket, String s3ObjectKey) {
+        return doActionForTags(s3bucket, s3ObjectKey, InvocationTimeBudget.unlimited());
     }
 
-    private TagBasedAction getActionToTake(String s3ObjectKey, List<Tag> tagsForBundle) {
-        String actionForLambda = System.getenv("TAG_BASED_ACTION");
+    /**
+     * Like {@link #doActionForTags(String, String)}, stopping a transfer that is projected to run past the
+     * {@code budget} deadline. A pass-through copy that checkpointed its progress returns {@link #HANDED_OFF} and is
+     * continued by processing the bundle again. Any other transfer, such as an encrypted one or a fan-out, has been
+     * discarded and returns {@link #HANDED_OFF_TO_RESTART}; processing the bundle again starts it over. One that is
+     * projected to take longer than the whole budget could never finish by starting over, and returns
+     * {@link #TOO_LARGE_FOR_INVOCATION} instead.
+     */
+    public String doActionForTags(String s3bucket, String s3ObjectKey, InvocationTimeBudget budget) {
+        Optional<TagBasedAction> keyDecision = routingEvaluator.decideFromKey(s3ObjectKey);
+        if (keyDecision.isPresent() && keyDecision.get() == TagBasedAction.NONE) {
+            logger.info("No action required for {} based on key and configuration; skipping S3 calls.", s3ObjectKey);
+            return NO_ACTION_TAKEN;
+        }
+
+        AmazonS3 amazonS3 = S3ClientPool.getSourceClient();
+        BundleSnapshot bundle = metadataPrefetcher.prefetch(amazonS3, config, s3bucket, s3ObjectKey);
 
-        boolean isCat3Bundle = s3ObjectKey.contains("CAT3_BUNDLE/");
-        boolean voltronProcessingTagPresent = TaggingUtils.tagExistsWithValue(tagsForBundle, "VOLTRON-PROCESSING",
-                "SUCCESS");
+        logger.info("Bundle tags present: {}", bundle.getTags().stream()
+                .map(t -> String.format("%s=%s", t.getKey(), t.getValue())).collect(Collectors.toList()));
 
-        List<String> patternsToIgnoreForTransfer = convertJsonArrayToStringList("file_configs/file-pattern-ignore-transfer.json");
-        boolean isIgnoredFile = isInFilePatterns(s3ObjectKey, patternsToIgnoreForTransfer);
+        TagBasedAction actionToTake = routingEvaluator.decide(bundle);
 
-        if (isCat3Bundle && !isIgnoredFile && actionForLambda.equals("VOLTRON_COPY")) {
-            return TagBasedAction.VOLTRON_COPY;
-        } else if (!voltronProcessingTagPresent && !isIgnoredFile && actionForLambda.equals("CAT2_COPY")) {
-            return TagBasedAction.CAT2_COPY;
+        if (actionToTake == TagBasedAction.VOLTRON_COPY) {
+            return doVoltronCopy(bundle, budget);
+        } else if (actionToTake == TagBasedAction.CAT2_COPY) {
+            return doEncryptAndCat3ToCat2Copy(bundle, budget);
+        } else if (actionToTake == TagBasedAction.FAN_OUT) {
+            return doFanOutCopy(bundle, budget);
         } else {
-            return TagBasedAction.NONE;
+            return NO_ACTION_TAKEN;
         }
     }
 
-    private boolean isInFilePatterns(String s3ObjectKey, List<String> filePatterns) {
-        String fileName = Paths.get(s3ObjectKey).getFileName().toString();
-        for (String patternString : filePatterns) {
-            Pattern pattern = Pattern.compile(patternString);
-            Matcher matcher = pattern.matcher(fileName);
-
-            if (matcher.matches()) {
-                return true;
-            }
+    /**
+     * Runs the routing decision and the upload path once on a small in-memory payload, encrypting it when this
+     * Lambda does CAT2 copies or fan-outs, and sends the result to {@code primingClient} instead of a real bucket.
+     * Used to warm the container before a snapshot.
+     */
+    void prime(AmazonS3 primingClient) throws Exception {
+        TagBasedAction primedAction = routingEvaluator.decide(new BundleSnapshot("priming-bucket", PRIMING_KEY,
+                new ArrayList<>(), new ObjectMetadata(), config.getTransferIgnorePatterns().matches(PRIMING_KEY),
+                config.getEncryptionIgnorePatterns().matches(PRIMING_KEY)));
+
+        byte[] primingPayload = new byte[64 * 1024];
+        new Random().nextBytes(primingPayload);
+        MultipartUploadOutputStream uploadStream = uploadEngine.openUploadStream(primingClient, "priming-bucket",
+                PRIMING_KEY, new ObjectMetadata(), new ObjectTagging(new ArrayList<>()));
+        TagBasedAction configuredAction = config.getTagBasedAction();
+        if (configuredAction == TagBasedAction.CAT2_COPY || configuredAction == TagBasedAction.FAN_OUT) {
+            BundleEncryptor.fromEnvironment().encrypt(new ByteArrayInputStream(primingPayload), uploadStream,
+                    PRIMING_KEY);
+        } else {
+            IOUtils.copy(new ByteArrayInputStream(primingPayload), uploadStream);
+            uploadStream.close();
         }
 
-        return false;
+        logger.info("Primed routing ({}) and encryption of {} bytes", primedAction, uploadStream.getBytesWritten());
     }
 
-    private String doEncryptAndCat3ToCat2Copy(String s3bucket, String s3ObjectKey, List<Tag> tagsForBundle) {
+    private String doEncryptAndCat3ToCat2Copy(BundleSnapshot bundle, InvocationTimeBudget budget) {
         String outcome = CAT2_MOVE_SUCCESS;
 
         logger.info("Beginning encryption and cat2 file transfer action.");
-        byte[] encryptedBundle = null;
-        ByteArrayInputStream fileContentToWrite = null;
         try {
-            encryptedBundle = getEncryptedBundleContents(s3bucket, s3ObjectKey);
-            long contentLength = encryptedBundle.length;
-            fileContentToWrite = new ByteArrayInputStream(encryptedBundle);
-            moveBundleToCat2Bucket(s3bucket, s3ObjectKey, fileContentToWrite, contentLength, tagsForBundle);
+            if (!moveBundleToCat2Bucket(bundle, budget)) {
+                outcome = CAT2_ALREADY_PRESENT;
+            }
         } catch (Exception e) {
-        	logger.info("Exception occurred during CAT2 File transfer: {}", Paths.get(s3ObjectKey).getFileName().toString());
+            InvocationTimeBudget.OutOfTimeException outOfTime = InvocationTimeBudget.outOfTimeCause(e);
+            if (outOfTime != null) {
+                logger.info("Handing off CAT2 transfer of {}: {}", bundle.getKey(), outOfTime.getMessage());
+                return handOffOutcome(bundle, outOfTime, config.getCat2Bucket(),
+                        config.cat2TargetKey(bundle.getKey()));
+            }
+        	logger.info("Exception occurred during CAT2 File transfer: {}", Paths.get(bundle.getKey()).getFileName().toString());
             logger.info("Exception occurred while performing the encryption/cat2 transfer: ", e);
             outcome = CAT2_MOVE_FAILURE;
-        } finally {
-            encryptedBundle = null;
-            if (null != fileContentToWrite) {
-                try {
-                    fileContentToWrite.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    outcome = CAT2_MOVE_FAILURE;
-                }
-            }
         }
 
         return outcome;
     }
 
-    private void moveBundleToCat2Bucket(String sourceBucket, String sourceKey, InputStream fileContentToWrite, long contentLength, List<Tag> currentTags) throws IOException {
-        String s3TargetBucket = System.getenv("CAT_2_BUCKET");
-        String targetKeyName = "ASVAWSIMAGING/CAT3_BUNDLE/" + Paths.get(sourceKey).getFileName().toString();
+    /**
+     * Streams the bundle from the source GET, through the PGP encryptor when required, directly into a
+     * multipart upload on the CAT2 bucket. Only the part buffers of the upload engine are held in memory.
+     * Returns false without transferring anything when the CAT2 object was already made from this bundle.
+     */
+    private boolean moveBundleToCat2Bucket(BundleSnapshot bundle, InvocationTimeBudget budget) throws Exception {
+        String sourceBucket = bundle.getBucket();
+        String sourceKey = bundle.getKey();
+        List<Tag> currentTags = bundle.getTags();
+        String s3TargetBucket = config.getCat2Bucket();
+        String fileName = Paths.get(sourceKey).getFileName().toString();
+        String targetKeyName = config.cat2TargetKey(sourceKey);
+
+        boolean alreadyEncrypted = bundle.isAlreadyEncrypted();
+
+        ObjectMetadata sourceMetadata = bundle.getSourceMetadata();
+        AmazonS3 cat2AmazonS3Client = S3ClientPool.getCat2Client();
+        if (destinationDedup.isAlreadyTransferred(cat2AmazonS3Client, s3TargetBucket, targetKeyName,
+                sourceMetadata)) {
+            logger.info("s3:{} already holds the content of s3:{}. Skipping transfer.",
+                    Paths.get(s3TargetBucket, targetKeyName).toString(), Paths.get(sourceBucket, sourceKey).toString());
+            return false;
+        }
 
-        logger.info("Downloading S3 bundle for transfer.");
-        ObjectMetadata objectMetadata = new ObjectMetadata();
-        objectMetadata.setContentLength(contentLength);
+        if (alreadyEncrypted && copyBundleServerSide(cat2AmazonS3Client, sourceBucket, sourceKey, s3TargetBucket,
+                targetKeyName, sourceMetadata, currentTags)) {
+            logger.info("Bundle is already encrypted. Copied server-side from s3:{} to s3:{}",
+                    Paths.get(sourceBucket, sourceKey).toString(), Paths.get(s3TargetBucket, targetKeyName).toString());
+            logFileDetails(fileName, sourceMetadata.getContentLength());
+            return true;
+        }
 
-        PutObjectRequest putObjectRequest = new PutObjectRequest(s3TargetBucket, targetKeyName, fileContentToWrite, objectMetadata);
-        putObjectRequest.setTagging(new ObjectTagging(currentTags));
+        logger.info("Downloading S3 bundle for transfer.");
+        long contentLength = sourceMetadata.getContentLength();
+        ObjectMetadata uploadMetadata = DestinationDedup.uploadMetadataFor(sourceMetadata, alreadyEncrypted);
+        if (alreadyEncrypted) {
+            logger.info("Bundle is already encrypted. Skipping encryption step...");
+            resumableTransfer.copy(S3ClientPool.getSourceClient(), sourceBucket, sourceKey, sourceMetadata,
+                    cat2AmazonS3Client, s3TargetBucket, targetKeyName, uploadMetadata, new ObjectTagging(currentTags),
+                    budget);
+            logger.info("Bundle copied from s3:{} to s3:{}", Paths.get(sourceBucket, sourceKey).toString(),
+                    Paths.get(s3TargetBucket, targetKeyName).toString());
+            logFileDetails(fileName, contentLength);
+            return true;
+        }
 
-        AmazonS3 cat2AmazonS3Client = AwsClientUtils.getCat2AmazonS3Client();
-        cat2AmazonS3Client.putObject(putObjectRequest);
+        MultipartUploadOutputStream uploadStream = resumableTransfer.openRestartableUploadStream(cat2AmazonS3Client,
+                sourceBucket, sourceKey, sourceMetadata, s3TargetBucket, targetKeyName, uploadMetadata,
+                new ObjectTagging(currentTags));
+        try (InputStream s3ObjectContent = budget.watch(downloadS3Bundle(sourceBucket, sourceKey, sourceMetadata),
+                contentLength)) {
+            logger.info("Streaming encrypted contents...");
+            BundleEncryptor.fromEnvironment().encrypt(s3ObjectContent, uploadStream, fileName);
+        } catch (Exception e) {
+            logger.info("Exception occurred while downloading /Encrypting docs from bucket: ", e);
+            uploadStream.abort();
+            throw e;
+        } finally {
+            resumableTransfer.finish(s3TargetBucket, targetKeyName);
+        }
 
         logger.info("Bundle copied from s3:{} to s3:{}", Paths.get(sourceBucket, sourceKey).toString(),
                 Paths.get(s3TargetBucket, targetKeyName).toString());
-        
-        logFileDetails(Paths.get(sourceKey).getFileName().toString(), contentLength);
+
+        logFileDetails(fileName, uploadStream.getBytesWritten());
+        return true;
     }
 
-    private S3Object downloadS3Bundle(String s3SourceBucket, String s3ObjectKey) {
-        return AwsClientUtils.getAmazonS3Client().getObject(s3SourceBucket, s3ObjectKey);
+    private InputStream downloadS3Bundle(String s3SourceBucket, String s3ObjectKey, ObjectMetadata sourceMetadata)
+            throws IOException {
+        return rangeDownloader.openStream(S3ClientPool.getSourceClient(), s3SourceBucket, s3ObjectKey,
+                sourceMetadata.getContentLength(), sourceMetadata.getETag());
     }
     
     private void logFileDetails(String fileName, long contentLength) {
@@ -173,15 +246,21 @@ public class Cat3Cat1TransferUtils {
     	
     }
 
-    private String doVoltronCopy(String s3bucket, String s3ObjectKey, List<Tag> tagsForBundle) {
+    private String doVoltronCopy(BundleSnapshot bundle, InvocationTimeBudget budget) {
         logger.info("Beginning copy to voltron staging folder.");
 
         try {
-            moveBundleToVoltronBucket(s3bucket, s3ObjectKey, tagsForBundle);
+            moveBundleToVoltronBucket(bundle, budget);
             logger.info("Voltron file transfer completed successfully");
 
             return VOLTRON_MOVE_SUCCESS;
         } catch (Exception e) {
+            InvocationTimeBudget.OutOfTimeException outOfTime = InvocationTimeBudget.outOfTimeCause(e);
+            if (outOfTime != null) {
+                logger.info("Handing off Voltron transfer of {}: {}", bundle.getKey(), outOfTime.getMessage());
+                return handOffOutcome(bundle, outOfTime, config.getVoltronBucket(),
+                        config.voltronTargetKey(bundle.getKey()));
+            }
             logger.error("An error occurred while sending bundle to Voltron", e);
             return VOLTRON_MOVE_FAILURE;
         }
@@ -189,47 +268,31 @@ public class Cat3Cat1TransferUtils {
     }
 
 
-    private byte[] getEncryptedBundleContents(String s3bucket, String s3ObjectKey)
-            throws Exception {
-        List<String> patternsToIgnoreForEncryption = convertJsonArrayToStringList("file_configs/file-pattern-ignore-encryption.json");
-        try (S3Object s3Object = downloadS3Bundle(s3bucket, s3ObjectKey)) {
-            byte[] fileContent;
-            if(isInFilePatterns(s3ObjectKey, patternsToIgnoreForEncryption)){
-                logger.info("Bundle is already encrypted. Skipping encryption step...");
-                try (InputStream s3ObjectContent = s3Object.getObjectContent()) {
-                    fileContent = IOUtils.toByteArray(s3ObjectContent);
-                }
-            } else {
-                logger.info("Getting encrypted contents...");
-                try (ByteArrayOutputStream os = SimplePGPUtil.encryptUsingGPG(s3Object)) {
-                    fileContent = os.toByteArray();
-                }
-            }
-            logger.info("S3 Object copied into new BAOS with length: {}", fileContent.length);
-            return fileContent;
-        } catch (Exception e) {
-            logger.info("Exception occurred while downloading /Encrypting docs from bucket: ", e);
-            throw e;
-        }
-    }
+    private void moveBundleToVoltronBucket(BundleSnapshot bundle, InvocationTimeBudget budget) throws IOException {
+        AmazonS3 amazonS3 = S3ClientPool.getSourceClient();
+        String s3SourceBucket = bundle.getBucket();
+        String s3SourceObjectKey = bundle.getKey();
+        List<Tag> tagsForBundle = new ArrayList<>(bundle.getTags());
 
-    private void moveBundleToVoltronBucket(String s3SourceBucket, String s3SourceObjectKey, List<Tag> tagsForBundle) throws IOException {
-        AmazonS3 amazonS3 = AwsClientUtils.getAmazonS3Client();
-
-        String s3TargetBucket = System.getenv("VOLTRON_BUCKET");
-        String targetKeyName = Paths.get(System.getenv("VOLTRON_PREFIX") + Paths.get(s3SourceObjectKey).getFileName().toString()).toString();
+        String s3TargetBucket = config.getVoltronBucket();
+        String targetKeyName = config.voltronTargetKey(s3SourceObjectKey);
 
         if (!TaggingUtils.tagExistsWithValue(tagsForBundle, "CAT3-BUNDLE", "TRUE")) {
             tagsForBundle.add(new Tag("CAT3-BUNDLE", "TRUE"));
         }
 
-        logger.info("Downloading S3 bundle for transfer.");
-        try (S3Object s3Object = downloadS3Bundle(s3SourceBucket, s3SourceObjectKey);
-             InputStream fileContent = s3Object.getObjectContent()) {
-            PutObjectRequest putObjectRequest = new PutObjectRequest(s3TargetBucket, targetKeyName, fileContent, new ObjectMetadata());
-            putObjectRequest.setTagging(new ObjectTagging(tagsForBundle));
+        ObjectMetadata sourceMetadata = bundle.getSourceMetadata();
+        boolean copied = false;
+        if (config.isVoltronServerSideCopy()) {
+            copied = copyBundleServerSide(amazonS3, s3SourceBucket, s3SourceObjectKey, s3TargetBucket, targetKeyName,
+                    sourceMetadata, tagsForBundle);
+        }
 
-            amazonS3.putObject(putObjectRequest);
+        if (!copied) {
+            logger.info("Downloading S3 bundle for transfer.");
+            resumableTransfer.copy(amazonS3, s3SourceBucket, s3SourceObjectKey, sourceMetadata, amazonS3,
+                    s3TargetBucket, targetKeyName, DestinationDedup.uploadMetadataFor(sourceMetadata, true),
+                    new ObjectTagging(tagsForBundle), budget);
         }
 
         logger.info("Bundle copied from s3:{} to s3:{}", Paths.get(s3SourceBucket, s3SourceObjectKey).toString(),
@@ -237,4 +300,143 @@ public class Cat3Cat1TransferUtils {
         amazonS3.deleteObject(new DeleteObjectRequest(s3SourceBucket, s3SourceObjectKey));
         logger.info("Source file deleted.");
     }
+
+    private String doFanOutCopy(BundleSnapshot bundle, InvocationTimeBudget budget) {
+        logger.info("Beginning fan-out of bundle to CAT2 and Voltron.");
+
+        try {
+            return fanOutBundle(bundle, budget) ? FAN_OUT_SUCCESS : FAN_OUT_FAILURE;
+        } catch (Exception e) {
+            InvocationTimeBudget.OutOfTimeException outOfTime = InvocationTimeBudget.outOfTimeCause(e);
+            if (outOfTime != null) {
+                logger.info("Handing off fan-out of {}: {}", bundle.getKey(), outOfTime.getMessage());
+                return restartOutcome(bundle, outOfTime);
+            }
+            logger.error("An error occurred while fanning out bundle", e);
+            return FAN_OUT_FAILURE;
+        }
+    }
+
+    /**
+     * {@link #HANDED_OFF} when the stopped transfer to the target left a checkpoint to continue from, otherwise the
+     * {@link #restartOutcome}.
+     */
+    private static String handOffOutcome(BundleSnapshot bundle, InvocationTimeBudget.OutOfTimeException outOfTime,
+            String targetBucket, String targetKey) {
+        return resumableTransfer.canContinue(targetBucket, targetKey) ? HANDED_OFF : restartOutcome(bundle, outOfTime);
+    }
+
+    /**
+     * {@link #HANDED_OFF_TO_RESTART}, or {@link #TOO_LARGE_FOR_INVOCATION} when the transfer would not finish even
+     * with a whole invocation, so that it is dead-lettered instead of uploading the bundle again on every restart.
+     */
+    private static String restartOutcome(BundleSnapshot bundle, InvocationTimeBudget.OutOfTimeException outOfTime) {
+        if (!outOfTime.exceedsWholeBudget()) {
+            return HANDED_OFF_TO_RESTART;
+        }
+        logger.error("{} cannot be transferred without a checkpoint in one invocation; failing it instead of "
+                + "starting over", bundle.getKey());
+        return TOO_LARGE_FOR_INVOCATION;
+    }
+
+    /**
+     * Reads the bundle once and streams it to the CAT2 bucket, encrypted unless it already is, to the Voltron
+     * bucket and, when configured, to the archive bucket. The CAT2 destination is left out when it already holds
+     * this bundle. The source is deleted only when every destination succeeded; returns whether they all did.
+     * A fan-out is not checkpointed, so a handed-off fan-out starts again from the beginning.
+     */
+    private boolean fanOutBundle(BundleSnapshot bundle, InvocationTimeBudget budget) throws IOException {
+        AmazonS3 sourceClient = S3ClientPool.getSourceClient();
+        AmazonS3 cat2Client = S3ClientPool.getCat2Client();
+        String sourceBucket = bundle.getBucket();
+        String sourceKey = bundle.getKey();
+        String fileName = Paths.get(sourceKey).getFileName().toString();
+        ObjectMetadata sourceMetadata = bundle.getSourceMetadata();
+        List<Tag> currentTags = bundle.getTags();
+        boolean alreadyEncrypted = bundle.isAlreadyEncrypted();
+
+        long contentLength = sourceMetadata.getContentLength();
+        List<FanOutTransfer.Sink> sinks = new ArrayList<>();
+        String cat2TargetKey = config.cat2TargetKey(sourceKey);
+        ObjectMetadata cat2Metadata = DestinationDedup.uploadMetadataFor(sourceMetadata, alreadyEncrypted);
+        FanOutTransfer.Sink cat2Sink = null;
+        if (destinationDedup.isAlreadyTransferred(cat2Client, config.getCat2Bucket(), cat2TargetKey,
+                sourceMetadata)) {
+            logger.info("s3:{} already holds the content of s3:{}. Leaving it out of the fan-out.",
+                    Paths.get(config.getCat2Bucket(), cat2TargetKey).toString(),
+                    Paths.get(sourceBucket, sourceKey).toString());
+        } else {
+            ObjectTagging cat2Tagging = new ObjectTagging(currentTags);
+            cat2Sink = alreadyEncrypted
+                    ? FanOutTransfer.Sink.plain(cat2Client, config.getCat2Bucket(), cat2TargetKey, cat2Metadata,
+                            cat2Tagging, contentLength)
+                    : FanOutTransfer.Sink.encrypted(cat2Client, config.getCat2Bucket(), cat2TargetKey, cat2Metadata,
+                            cat2Tagging, fileName, contentLength);
+            sinks.add(cat2Sink);
+        }
+
+        List<Tag> voltronTags = new ArrayList<>(currentTags);
+        if (!TaggingUtils.tagExistsWithValue(voltronTags, "CAT3-BUNDLE", "TRUE")) {
+            voltronTags.add(new Tag("CAT3-BUNDLE", "TRUE"));
+        }
+        sinks.add(FanOutTransfer.Sink.plain(sourceClient, config.getVoltronBucket(), config.voltronTargetKey(sourceKey),
+                DestinationDedup.uploadMetadataFor(sourceMetadata, true), new ObjectTagging(voltronTags),
+                contentLength));
+        if (config.getArchiveBucket() != null) {
+            sinks.add(FanOutTransfer.Sink.plain(sourceClient, config.getArchiveBucket(), sourceKey,
+                    DestinationDedup.uploadMetadataFor(sourceMetadata, true), new ObjectTagging(currentTags),
+                    contentLength));
+        }
+
+        List<FanOutTransfer.SinkResult> results;
+        try (InputStream s3ObjectContent = budget.watch(downloadS3Bundle(sourceBucket, sourceKey, sourceMetadata),
+                contentLength)) {
+            results = fanOutTransfer.transfer(s3ObjectContent, sinks);
+        }
+
+        boolean allSucceeded = true;
+        for (FanOutTransfer.SinkResult result : results) {
+            if (!result.isSuccessful()) {
+                logger.error("Fan-out of s3:{} to {} failed", Paths.get(sourceBucket, sourceKey).toString(),
+                        result.getSink(), result.getError());
+                allSucceeded = false;
+            } else if (result.getSink() == cat2Sink) {
+                logFileDetails(fileName, result.getBytesWritten());
+            }
+        }
+        if (!allSucceeded) {
+            return false;
+        }
+
+        sourceClient.deleteObject(new DeleteObjectRequest(sourceBucket, sourceKey));
+        logger.info("Bundle fanned out to {} destinations. Source file deleted.", sinks.size());
+        return true;
+    }
+
+    /**
+     * Copies the bundle server-side with the given client. Returns false when S3 rejects the copy, e.g. because
+     * the client cannot read the source bucket, so the caller can fall back to streaming the bytes; any other
+     * failure is rethrown. That includes a source overwritten during the copy, so it is never deleted as copied.
+     */
+    private boolean copyBundleServerSide(AmazonS3 amazonS3, String s3SourceBucket, String s3SourceObjectKey,
+                                         String s3TargetBucket, String targetKeyName, ObjectMetadata sourceMetadata,
+                                         List<Tag> tagsForBundle) {
+        try {
+            serverSideCopier.copy(amazonS3, s3SourceBucket, s3SourceObjectKey, s3TargetBucket, targetKeyName,
+                    sourceMetadata, tagsForBundle);
+            return true;
+        } catch (AmazonServiceException e) {
+            if (ServerSideCopier.isSourceChanged(e)) {
+                logger.warn("s3:{} changed during the server-side copy; leaving it in place",
+                        Paths.get(s3SourceBucket, s3SourceObjectKey).toString());
+                throw e;
+            }
+            if (!ServerSideCopier.isCopyRejected(e)) {
+                throw e;
+            }
+            logger.warn("Server-side copy rejected ({} {}), falling back to streaming transfer", e.getStatusCode(),
+                    e.getErrorCode());
+            return false;
+        }
+    }
 }
@@ -0,0 +1,62 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Skips transfers whose content is already at the destination. Every copy, streamed or server-side, records the
+ * ETag of the source it was made from as user metadata on the destination object, so before a transfer a single
+ * HEAD of the destination shows whether it already holds this content.
+ *
+ * The source ETag identifies the content of a source version and is known before the transfer starts, unlike a
+ * checksum of the content, which would only be known after the upload and need a second write of the object to
+ * record.
+ */
+public class DestinationDedup {
+    private static final Logger logger = LoggerFactory.getLogger(DestinationDedup.class);
+
+    public static final String SOURCE_ETAG_METADATA = "source-etag";
+
+    /**
+     * Returns true when the destination object records that it was made from this version of the source. A
+     * destination that cannot be read is treated as missing.
+     */
+    public boolean isAlreadyTransferred(AmazonS3 targetClient, String targetBucket, String targetKey,
+                                        ObjectMetadata sourceMetadata) {
+        String sourceETag = sourceMetadata.getETag();
+        if (sourceETag == null) {
+            return false;
+        }
+
+        ObjectMetadata targetMetadata;
+        try {
+            targetMetadata = targetClient.getObjectMetadata(targetBucket, targetKey);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != 404) {
+                logger.warn("Unable to check s3:{}/{} for an earlier copy ({} {})", targetBucket, targetKey,
+                        e.getStatusCode(), e.getErrorCode());
+            }
+            return false;
+        }
+
+        return sourceETag.equals(targetMetadata.getUserMetaDataOf(SOURCE_ETAG_METADATA));
+    }
+
+    /**
+     * Metadata for a streamed copy of the source, recording the source ETag. The content type is kept when the
+     * copy has the same bytes as the source, and left out when it is an encrypted copy.
+     */
+    public static ObjectMetadata uploadMetadataFor(ObjectMetadata sourceMetadata, boolean sameContent) {
+        ObjectMetadata uploadMetadata = new ObjectMetadata();
+        if (sameContent && sourceMetadata.getContentType() != null) {
+            uploadMetadata.setContentType(sourceMetadata.getContentType());
+        }
+        if (sourceMetadata.getETag() != null) {
+            uploadMetadata.addUserMetadata(SOURCE_ETAG_METADATA, sourceMetadata.getETag());
+        }
+        return uploadMetadata;
+    }
+}
@@ -0,0 +1,28 @@
+package com.capitalone.gallery.utils;
+
+/**
+ * Writes CloudWatch metrics in the embedded metric format (EMF). Lambda only extracts EMF from log lines that
+ * are bare JSON objects, so the lines go straight to stdout rather than through the logging pattern; this class
+ * is the one place that does so.
+ */
+final class EmfMetricEmitter {
+    private final String namespace;
+    private final String dimensionName;
+
+    EmfMetricEmitter(String namespace, String dimensionName) {
+        this.namespace = namespace;
+        this.dimensionName = dimensionName;
+    }
+
+    /**
+     * Emits one Count metric for the given dimension value.
+     */
+    void emitCount(String dimensionValue, String metricName, long value) {
+        String line = String.format("{\"_aws\":{\"Timestamp\":%d,\"CloudWatchMetrics\":[{\"Namespace\":\"%s\","
+                        + "\"Dimensions\":[[\"%s\"]],\"Metrics\":[{\"Name\":\"%s\",\"Unit\":\"Count\"}]}]},"
+                        + "\"%s\":\"%s\",\"%s\":%d}",
+                System.currentTimeMillis(), namespace, dimensionName, metricName, dimensionName, dimensionValue,
+                metricName, value);
+        System.out.println(line);
+    }
+}
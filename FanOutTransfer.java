@@ -0,0 +1,392 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ObjectTagging;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transfers one source stream to several destinations with a single read. The source is read in chunks and every
+ * chunk is shared, without copying, by the bounded queues of all sinks. Each sink drains its queue on its own
+ * thread into its own multipart upload, through the PGP encryptor when it encrypts. A full queue blocks the reader,
+ * so the slowest sink sets the pace and each sink holds at most {@code queueChunks} chunks.
+ *
+ * That bound holds for encrypted sinks only with a streaming {@link BundleEncryptor}. The default encryptor reads
+ * the whole source into memory before it writes anything, so an encrypted sink then holds the entire encrypted
+ * bundle. Such a sink keeps draining its queue, so it does not stall the reader, but a fan-out with one is refused
+ * before anything is read when the source is larger than {@code maxBufferedBytes}.
+ *
+ * A sink that fails has its upload aborted and is dropped; the others carry on. A failure to read the source aborts
+ * every sink and is rethrown.
+ */
+public class FanOutTransfer {
+    private static final Logger logger = LoggerFactory.getLogger(FanOutTransfer.class);
+
+    public static final int DEFAULT_CHUNK_SIZE_KB = 1024;
+    public static final int DEFAULT_QUEUE_CHUNKS = 8;
+    public static final int DEFAULT_MAX_BUFFERED_MB = 512;
+    private static final byte[] END_OF_STREAM = new byte[0];
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final MultipartUploadEngine uploadEngine;
+    private final int chunkSize;
+    private final int queueChunks;
+    private final long maxBufferedBytes;
+    private final ExecutorService executor;
+
+    public FanOutTransfer(MultipartUploadEngine uploadEngine, int chunkSize, int queueChunks) {
+        this(uploadEngine, chunkSize, queueChunks, DEFAULT_MAX_BUFFERED_MB * 1024L * 1024L);
+    }
+
+    /**
+     * @param maxBufferedBytes the largest source an encrypted sink may take with an encryptor that holds the whole
+     *                         encrypted bundle in memory
+     */
+    public FanOutTransfer(MultipartUploadEngine uploadEngine, int chunkSize, int queueChunks, long maxBufferedBytes) {
+        if (chunkSize < 1 || queueChunks < 1 || maxBufferedBytes < 0) {
+            throw new IllegalArgumentException("Chunk size and queue length must be positive and the buffer limit "
+                    + "not negative");
+        }
+        this.uploadEngine = uploadEngine;
+        this.chunkSize = chunkSize;
+        this.queueChunks = queueChunks;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.executor = Executors.newCachedThreadPool(MultipartUploadEngine.daemonThreadFactory("fan-out-sink"));
+    }
+
+    /**
+     * Builds a fan-out from the FAN_OUT_CHUNK_SIZE_KB, FAN_OUT_QUEUE_CHUNKS and FAN_OUT_MAX_BUFFERED_MB environment
+     * variables, falling back to the defaults when they are not set.
+     */
+    public static FanOutTransfer fromEnvironment(MultipartUploadEngine uploadEngine) {
+        int chunkSizeKb = MultipartUploadEngine.intFromEnvironment("FAN_OUT_CHUNK_SIZE_KB", DEFAULT_CHUNK_SIZE_KB);
+        int queueChunks = MultipartUploadEngine.intFromEnvironment("FAN_OUT_QUEUE_CHUNKS", DEFAULT_QUEUE_CHUNKS);
+        int maxBufferedMb = MultipartUploadEngine.intFromEnvironment("FAN_OUT_MAX_BUFFERED_MB",
+                DEFAULT_MAX_BUFFERED_MB);
+        return new FanOutTransfer(uploadEngine, chunkSizeKb * 1024, queueChunks, maxBufferedMb * 1024L * 1024L);
+    }
+
+    /**
+     * Reads {@code source} to the end and writes it to every sink. Returns one result per sink, in the same order
+     * as {@code sinks}. Throws the source's exception, after every sink has been aborted, when the source cannot be
+     * read to the end, and throws before reading anything when an encrypted sink would have to buffer more than
+     * {@code maxBufferedBytes}.
+     */
+    public List<SinkResult> transfer(InputStream source, List<Sink> sinks) throws IOException {
+        BundleEncryptor encryptor = encryptorFor(sinks);
+        List<SinkWorker> workers = new ArrayList<>(sinks.size());
+        for (Sink sink : sinks) {
+            SinkWorker worker = new SinkWorker(sink, encryptor, new ArrayBlockingQueue<>(queueChunks));
+            worker.future = executor.submit(worker);
+            workers.add(worker);
+        }
+
+        IOException sourceFailure = null;
+        long bytesRead = 0;
+        try {
+            byte[] chunk;
+            while ((chunk = readChunk(source)) != null) {
+                bytesRead += chunk.length;
+                deliver(chunk, workers);
+            }
+        } catch (IOException e) {
+            logger.error("Fan-out source failed after {} bytes", bytesRead, e);
+            sourceFailure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sourceFailure = new IOException("Interrupted while fanning out", e);
+        }
+
+        for (SinkWorker worker : workers) {
+            worker.sourceFailure = sourceFailure;
+        }
+        try {
+            deliver(END_OF_STREAM, workers);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (SinkWorker worker : workers) {
+                worker.future.cancel(true);
+            }
+        }
+
+        List<SinkResult> results = new ArrayList<>(workers.size());
+        for (SinkWorker worker : workers) {
+            results.add(worker.result());
+        }
+        if (sourceFailure != null) {
+            throw sourceFailure;
+        }
+        logger.info("Fanned out {} bytes to {} sinks: {}", bytesRead, sinks.size(), results);
+        return results;
+    }
+
+    /**
+     * The encryptor for the encrypted sinks, or null when there are none. A buffering encryptor is refused for a
+     * sink whose source is larger than {@code maxBufferedBytes}.
+     */
+    private BundleEncryptor encryptorFor(List<Sink> sinks) throws IOException {
+        BundleEncryptor encryptor = null;
+        for (Sink sink : sinks) {
+            if (!sink.isEncrypted()) {
+                continue;
+            }
+            if (encryptor == null) {
+                try {
+                    encryptor = BundleEncryptor.fromEnvironment();
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException("Unable to set up encryption for fan-out", e);
+                }
+            }
+            if (!encryptor.isStreaming() && sink.expectedLength > maxBufferedBytes) {
+                throw new IOException(String.format("Encrypting %d bytes for %s would buffer more than %d bytes; "
+                        + "enable PGP_STREAMING_ENCRYPTION or raise FAN_OUT_MAX_BUFFERED_MB", sink.expectedLength,
+                        sink, maxBufferedBytes));
+            }
+        }
+        return encryptor;
+    }
+
+    private byte[] readChunk(InputStream source) throws IOException {
+        byte[] chunk = new byte[chunkSize];
+        int length = IOUtils.read(source, chunk);
+        if (length == 0) {
+            return null;
+        }
+        return length == chunkSize ? chunk : Arrays.copyOf(chunk, length);
+    }
+
+    /**
+     * Hands the chunk to every sink that is still running, waiting while a sink's queue is full.
+     */
+    private static void deliver(byte[] chunk, List<SinkWorker> workers) throws InterruptedException {
+        for (SinkWorker worker : workers) {
+            while (!worker.future.isDone()
+                    && !worker.queue.offer(chunk, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                logger.debug("Waiting for {} to drain", worker.sink);
+            }
+        }
+    }
+
+    /**
+     * One destination of a fan-out: an object written with its own client, either as-is or PGP-encrypted. The
+     * upload's parts are sized from the source length, so a large source stays within the S3 part limit.
+     */
+    public static final class Sink {
+        /**
+         * Encrypted output can be slightly larger than the source; parts are sized for this fraction more.
+         */
+        private static final int ENCRYPTION_HEADROOM_DIVISOR = 100;
+
+        private final AmazonS3 amazonS3;
+        private final String bucket;
+        private final String key;
+        private final ObjectMetadata uploadMetadata;
+        private final ObjectTagging tagging;
+        private final String encryptedFileName;
+        private final long expectedLength;
+
+        private Sink(AmazonS3 amazonS3, String bucket, String key, ObjectMetadata uploadMetadata,
+                     ObjectTagging tagging, String encryptedFileName, long expectedLength) {
+            this.amazonS3 = amazonS3;
+            this.bucket = bucket;
+            this.key = key;
+            this.uploadMetadata = uploadMetadata;
+            this.tagging = tagging;
+            this.encryptedFileName = encryptedFileName;
+            this.expectedLength = expectedLength;
+        }
+
+        /**
+         * @param sourceLength length of the fan-out source, or -1 when it is not known
+         */
+        public static Sink plain(AmazonS3 amazonS3, String bucket, String key, ObjectMetadata uploadMetadata,
+                                 ObjectTagging tagging, long sourceLength) {
+            return new Sink(amazonS3, bucket, key, uploadMetadata, tagging, null, sourceLength);
+        }
+
+        /**
+         * A sink that PGP-encrypts the content, naming it {@code fileName} inside the PGP literal data packet.
+         */
+        public static Sink encrypted(AmazonS3 amazonS3, String bucket, String key, ObjectMetadata uploadMetadata,
+                                     ObjectTagging tagging, String fileName, long sourceLength) {
+            return new Sink(amazonS3, bucket, key, uploadMetadata, tagging, fileName,
+                    sourceLength < 0 ? sourceLength : sourceLength + sourceLength / ENCRYPTION_HEADROOM_DIVISOR);
+        }
+
+        public AmazonS3 getAmazonS3() {
+            return amazonS3;
+        }
+
+        public String getBucket() {
+            return bucket;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public ObjectMetadata getUploadMetadata() {
+            return uploadMetadata;
+        }
+
+        public boolean isEncrypted() {
+            return encryptedFileName != null;
+        }
+
+        @Override
+        public String toString() {
+            return (isEncrypted() ? "encrypted " : "") + "s3:" + bucket + "/" + key;
+        }
+    }
+
+    /**
+     * The outcome for one sink: the number of bytes uploaded, or the error that stopped it.
+     */
+    public static final class SinkResult {
+        private final Sink sink;
+        private final long bytesWritten;
+        private final Exception error;
+
+        SinkResult(Sink sink, long bytesWritten, Exception error) {
+            this.sink = sink;
+            this.bytesWritten = bytesWritten;
+            this.error = error;
+        }
+
+        public Sink getSink() {
+            return sink;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isSuccessful() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            return sink + (error == null ? " (" + bytesWritten + " bytes)" : " failed: " + error.getMessage());
+        }
+    }
+
+    private final class SinkWorker implements Callable<Long> {
+        private final Sink sink;
+        private final BundleEncryptor encryptor;
+        private final BlockingQueue<byte[]> queue;
+        private Future<Long> future;
+        private volatile IOException sourceFailure;
+
+        SinkWorker(Sink sink, BundleEncryptor encryptor, BlockingQueue<byte[]> queue) {
+            this.sink = sink;
+            this.encryptor = encryptor;
+            this.queue = queue;
+        }
+
+        @Override
+        public Long call() throws Exception {
+            MultipartUploadOutputStream uploadStream = uploadEngine.openUploadStream(sink.amazonS3, sink.bucket,
+                    sink.key, sink.uploadMetadata, sink.tagging, sink.expectedLength);
+            try (InputStream content = new QueueInputStream()) {
+                if (sink.isEncrypted()) {
+                    encryptor.encrypt(content, uploadStream, sink.encryptedFileName);
+                } else {
+                    IOUtils.copyLarge(content, uploadStream);
+                    uploadStream.close();
+                }
+            } catch (Exception e) {
+                logger.error("Fan-out to {} failed", sink, e);
+                uploadStream.abort();
+                throw e;
+            }
+            return uploadStream.getBytesWritten();
+        }
+
+        SinkResult result() {
+            try {
+                return new SinkResult(sink, future.get(), null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new SinkResult(sink, 0, e);
+            } catch (ExecutionException e) {
+                Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                return new SinkResult(sink, 0, cause);
+            } catch (RuntimeException e) {
+                return new SinkResult(sink, 0, e);
+            }
+        }
+
+        /**
+         * The sink's view of the source: the chunks in its queue, ending at the end-of-stream marker.
+         */
+        private final class QueueInputStream extends InputStream {
+            private byte[] chunk = new byte[0];
+            private int position;
+            private boolean ended;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (position == chunk.length) {
+                    if (ended || !nextChunk()) {
+                        return -1;
+                    }
+                }
+                int count = Math.min(len, chunk.length - position);
+                System.arraycopy(chunk, position, b, off, count);
+                position += count;
+                return count;
+            }
+
+            private boolean nextChunk() throws IOException {
+                try {
+                    byte[] next = queue.take();
+                    if (next == END_OF_STREAM) {
+                        ended = true;
+                        if (sourceFailure != null) {
+                            throw new IOException("Fan-out source failed", sourceFailure);
+                        }
+                        return false;
+                    }
+                    chunk = next;
+                    position = 0;
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for fan-out source", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.capitalone.gallery.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * {@link BackfillCheckpointStore} kept in a properties file. Every update rewrites the file through a temporary
+ * file and an atomic rename, so a crash leaves either the previous checkpoint or the new one.
+ */
+public class FileBackfillCheckpointStore implements BackfillCheckpointStore {
+    private static final String COMPLETED_PREFIX = "completed:";
+    private static final String START_AFTER_PREFIX = "startAfter:";
+
+    private final Path checkpointFile;
+    private final Properties checkpoints = new Properties();
+
+    public FileBackfillCheckpointStore(Path checkpointFile) throws IOException {
+        this.checkpointFile = checkpointFile;
+        if (Files.exists(checkpointFile)) {
+            try (InputStream is = Files.newInputStream(checkpointFile)) {
+                checkpoints.load(is);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean isCompleted(String bucket, String prefix) {
+        return checkpoints.containsKey(COMPLETED_PREFIX + location(bucket, prefix));
+    }
+
+    @Override
+    public synchronized String getStartAfter(String bucket, String prefix) {
+        return checkpoints.getProperty(START_AFTER_PREFIX + location(bucket, prefix));
+    }
+
+    @Override
+    public synchronized void saveStartAfter(String bucket, String prefix, String startAfter) {
+        checkpoints.setProperty(START_AFTER_PREFIX + location(bucket, prefix), startAfter);
+        persist();
+    }
+
+    @Override
+    public synchronized void markCompleted(String bucket, String prefix) {
+        checkpoints.remove(START_AFTER_PREFIX + location(bucket, prefix));
+        checkpoints.setProperty(COMPLETED_PREFIX + location(bucket, prefix), "");
+        persist();
+    }
+
+    private static String location(String bucket, String prefix) {
+        return bucket + "/" + prefix;
+    }
+
+    private void persist() {
+        try {
+            Path directory = checkpointFile.toAbsolutePath().getParent();
+            Path tempFile = Files.createTempFile(directory, checkpointFile.getFileName().toString(), ".tmp");
+            try (OutputStream os = Files.newOutputStream(tempFile)) {
+                checkpoints.store(os, "Prefix backfill checkpoint");
+            }
+            Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write backfill checkpoint " + checkpointFile, e);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.capitalone.gallery.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link IdempotencyStore} built on conditional writes to a shared directory, e.g. on EFS, standing in for a
+ * conditional put to a table. A claim is a file created only if it does not exist yet, so of two concurrent
+ * deliveries exactly one wins; completion atomically replaces the claim with a marker that expires after
+ * {@code completedTtlMillis}, which should outlast the redelivery window of the event source.
+ *
+ * An expired claim, left by an attempt that died, is taken over by deleting it and claiming again. Two attempts
+ * taking over the same expired claim at the same moment can both succeed, which is safe because a resumed
+ * transfer is idempotent; the claim only has to stop the common duplicates.
+ *
+ * An expired marker no longer counts when a key is claimed. Expired markers, and claims that expired without being
+ * taken over, are deleted by a sweep of the directory that runs at most once every {@link #CLEANUP_INTERVAL_MILLIS}
+ * after a key is completed.
+ */
+public class FileIdempotencyStore implements IdempotencyStore {
+    private static final Logger logger = LoggerFactory.getLogger(FileIdempotencyStore.class);
+
+    static final long CLEANUP_INTERVAL_MILLIS = 60L * 60L * 1000L;
+    private static final String COMPLETED = "completed";
+    private static final String CLAIM_SUFFIX = ".claim";
+    private static final String COMPLETED_SUFFIX = ".done";
+
+    private final Path directory;
+    private final long claimTtlMillis;
+    private final long completedTtlMillis;
+    private final AtomicLong nextCleanupMillis = new AtomicLong();
+
+    public FileIdempotencyStore(Path directory, long claimTtlMillis, long completedTtlMillis) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.claimTtlMillis = claimTtlMillis;
+        this.completedTtlMillis = completedTtlMillis;
+    }
+
+    @Override
+    public boolean tryClaim(String idempotencyKey) {
+        String fileName = fileNameFor(idempotencyKey);
+        Path claimFile = directory.resolve(fileName + CLAIM_SUFFIX);
+        try {
+            if (isCompleted(directory.resolve(fileName + COMPLETED_SUFFIX))) {
+                return false;
+            }
+            return createClaim(claimFile) || takeOverExpiredClaim(claimFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to claim " + idempotencyKey, e);
+        }
+    }
+
+    @Override
+    public void markCompleted(String idempotencyKey) {
+        String fileName = fileNameFor(idempotencyKey);
+        try {
+            Path tempFile = Files.createTempFile(directory, fileName, ".tmp");
+            Files.write(tempFile, COMPLETED.getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, directory.resolve(fileName + COMPLETED_SUFFIX), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(directory.resolve(fileName + CLAIM_SUFFIX));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to mark " + idempotencyKey + " completed", e);
+        }
+        cleanUpIfDue();
+    }
+
+    @Override
+    public void release(String idempotencyKey) {
+        try {
+            Files.deleteIfExists(directory.resolve(fileNameFor(idempotencyKey) + CLAIM_SUFFIX));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to release " + idempotencyKey, e);
+        }
+    }
+
+    /**
+     * Returns true when the completion marker exists and has not expired. An expired marker is deleted.
+     */
+    private boolean isCompleted(Path completedFile) throws IOException {
+        FileTime completedAt;
+        try {
+            completedAt = Files.getLastModifiedTime(completedFile);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (!isExpired(completedAt, completedTtlMillis)) {
+            return true;
+        }
+
+        Files.deleteIfExists(completedFile);
+        return false;
+    }
+
+    /**
+     * Deletes expired completion markers and claims, unless another thread has swept within the cleanup interval.
+     * A failed sweep is only logged, since the markers it missed are ignored when claimed anyway.
+     */
+    private void cleanUpIfDue() {
+        long now = System.currentTimeMillis();
+        long dueMillis = nextCleanupMillis.get();
+        if (now < dueMillis || !nextCleanupMillis.compareAndSet(dueMillis, now + CLEANUP_INTERVAL_MILLIS)) {
+            return;
+        }
+
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long ttlMillis = name.endsWith(COMPLETED_SUFFIX) ? completedTtlMillis
+                        : name.endsWith(CLAIM_SUFFIX) ? claimTtlMillis : -1;
+                try {
+                    if (ttlMillis >= 0 && isExpired(Files.getLastModifiedTime(file), ttlMillis)
+                            && Files.deleteIfExists(file)) {
+                        deleted++;
+                    }
+                } catch (NoSuchFileException e) {
+                    // deleted by a concurrent claim or sweep
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to clean up expired idempotency markers in {}", directory, e);
+        }
+        if (deleted > 0) {
+            logger.info("Deleted {} expired idempotency markers from {}", deleted, directory);
+        }
+    }
+
+    private static boolean isExpired(FileTime modifiedAt, long ttlMillis) {
+        return modifiedAt.toMillis() + ttlMillis <= System.currentTimeMillis();
+    }
+
+    private static boolean createClaim(Path claimFile) throws IOException {
+        try {
+            Files.createFile(claimFile);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    private boolean takeOverExpiredClaim(Path claimFile) throws IOException {
+        FileTime claimedAt;
+        try {
+            claimedAt = Files.getLastModifiedTime(claimFile);
+        } catch (NoSuchFileException e) {
+            return createClaim(claimFile);
+        }
+        if (!isExpired(claimedAt, claimTtlMillis)) {
+            return false;
+        }
+
+        Files.deleteIfExists(claimFile);
+        return createClaim(claimFile);
+    }
+
+    /**
+     * Keys can be longer than a file name allows, so files are named by a hash of the key.
+     */
+    private static String fileNameFor(String idempotencyKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(idempotencyKey.getBytes(StandardCharsets.UTF_8));
+            StringBuilder fileName = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                fileName.append(String.format("%02x", b));
+            }
+            return fileName.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
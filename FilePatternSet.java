@@ -0,0 +1,94 @@
+package com.capitalone.gallery.utils;
+
+import gherkin.deps.com.google.gson.Gson;
+import gherkin.deps.com.google.gson.reflect.TypeToken;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable set of file name patterns, loaded from a JSON array config file and compiled once into a
+ * {@link MultiPatternMatcher} so a file name is checked against every rule in one pass. Instances are cached
+ * per resource for the life of the container and are safe to share between threads.
+ */
+public final class FilePatternSet {
+    private static final Logger logger = LoggerFactory.getLogger(FilePatternSet.class);
+
+    public static final String IGNORE_TRANSFER_PATTERNS = "file_configs/file-pattern-ignore-transfer.json";
+    public static final String IGNORE_ENCRYPTION_PATTERNS = "file_configs/file-pattern-ignore-encryption.json";
+
+    private static final ConcurrentMap<String, FilePatternSet> loadedSets = new ConcurrentHashMap<>();
+
+    private final List<String> patternStrings;
+    private final MultiPatternMatcher matcher;
+
+    private FilePatternSet(List<String> patternStrings) {
+        this.patternStrings = Collections.unmodifiableList(new ArrayList<>(patternStrings));
+        this.matcher = new MultiPatternMatcher(patternStrings);
+    }
+
+    /**
+     * Returns the pattern set for a classpath JSON config file, loading and compiling it on first use.
+     */
+    public static FilePatternSet forResource(String resourcePath) {
+        return loadedSets.computeIfAbsent(resourcePath, path -> {
+            FilePatternSet patternSet = of(convertJsonArrayToStringList(path));
+            logger.info("Loaded {} file patterns from {} ({} literal rules)", patternSet.size(), path,
+                    patternSet.matcher.getLiteralRuleCount());
+            return patternSet;
+        });
+    }
+
+    public static FilePatternSet of(List<String> patternStrings) {
+        return new FilePatternSet(patternStrings);
+    }
+
+    /**
+     * Returns true when the file name of {@code s3ObjectKey} fully matches any pattern in the set.
+     */
+    public boolean matches(String s3ObjectKey) {
+        Path fileName = Paths.get(s3ObjectKey).getFileName();
+        if (fileName == null) {
+            return false;
+        }
+
+        return matcher.matches(fileName.toString());
+    }
+
+    public List<String> getPatternStrings() {
+        return patternStrings;
+    }
+
+    public int size() {
+        return patternStrings.size();
+    }
+
+    private static String readResourceAsString(String filePath) {
+        try (InputStream is = FilePatternSet.class.getClassLoader().getResourceAsStream(filePath)) {
+            return IOUtils.toString(is, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.error("Exception occurred while trying to read config file {}: {}", filePath, e);
+            throw new RuntimeException();
+        }
+    }
+
+    private static List<String> convertJsonArrayToStringList(String jsonFilePath){
+        Gson converter = new Gson();
+        String jsonString = readResourceAsString(jsonFilePath);
+        Type type = new TypeToken<List<String>>(){}.getType();
+
+        return converter.fromJson(jsonString, type);
+    }
+}
@@ -0,0 +1,85 @@
+package com.capitalone.gallery.utils;
+
+import gherkin.deps.com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * {@link TransferCheckpointStore} with one JSON file per transfer in a directory, e.g. on EFS so checkpoints
+ * outlive the container. Files are replaced through a temporary file and an atomic rename, so a reader never
+ * sees a half-written checkpoint.
+ */
+public class FileTransferCheckpointStore implements TransferCheckpointStore {
+    private final Path directory;
+    private final Gson gson = new Gson();
+
+    public FileTransferCheckpointStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    @Override
+    public TransferCheckpoint load(String targetBucket, String targetKey) {
+        try {
+            String json = new String(Files.readAllBytes(checkpointFile(targetBucket, targetKey)),
+                    StandardCharsets.UTF_8);
+            return gson.fromJson(json, TransferCheckpoint.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read transfer checkpoint for s3:" + targetBucket + "/"
+                    + targetKey, e);
+        }
+    }
+
+    @Override
+    public void save(TransferCheckpoint checkpoint) {
+        Path checkpointFile = checkpointFile(checkpoint.getTargetBucket(), checkpoint.getTargetKey());
+        try {
+            Path tempFile = Files.createTempFile(directory, checkpointFile.getFileName().toString(), ".tmp");
+            Files.write(tempFile, gson.toJson(checkpoint).getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write transfer checkpoint " + checkpointFile, e);
+        }
+    }
+
+    @Override
+    public void delete(String targetBucket, String targetKey) {
+        try {
+            Files.deleteIfExists(checkpointFile(targetBucket, targetKey));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to delete transfer checkpoint for s3:" + targetBucket + "/"
+                    + targetKey, e);
+        }
+    }
+
+    /**
+     * Object keys can be longer than a file name allows, so checkpoint files are named by a hash of the target.
+     */
+    private Path checkpointFile(String targetBucket, String targetKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest((targetBucket + "/" + targetKey).getBytes(StandardCharsets.UTF_8));
+            StringBuilder fileName = new StringBuilder(digest.length * 2 + 5);
+            for (byte b : digest) {
+                fileName.append(String.format("%02x", b));
+            }
+            return directory.resolve(fileName.append(".json").toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    @Override
+    public boolean isDurable() {
+        return true;
+    }
+}
@@ -0,0 +1,21 @@
+package com.capitalone.gallery.utils;
+
+/**
+ * Remembers which bundle events have been processed, keyed by {@link BundleRecord#idempotencyKey()}, so a
+ * duplicate delivery is acknowledged without moving any data.
+ *
+ * An attempt first claims the key. The claim fails when the key is completed, or when another attempt holds an
+ * unexpired claim on it. The attempt then either marks the key completed or releases it so the event can be
+ * processed again.
+ */
+public interface IdempotencyStore {
+
+    /**
+     * Claims {@code idempotencyKey} for processing. Returns false when it is already completed or claimed.
+     */
+    boolean tryClaim(String idempotencyKey);
+
+    void markCompleted(String idempotencyKey);
+
+    void release(String idempotencyKey);
+}
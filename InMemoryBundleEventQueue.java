@@ -0,0 +1,72 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * In-process {@link BundleEventQueue} for local runs and tests. Failed messages are redelivered immediately
+ * instead of after a visibility timeout, and there is no dead-letter queue.
+ */
+public class InMemoryBundleEventQueue implements BundleEventQueue {
+    private final Queue<SQSMessage> visibleMessages = new ConcurrentLinkedQueue<>();
+    private final Map<String, SQSMessage> inFlightMessages = new ConcurrentHashMap<>();
+
+    @Override
+    public void send(String messageBody) {
+        SQSMessage message = new SQSMessage();
+        message.setMessageId(UUID.randomUUID().toString());
+        message.setBody(messageBody);
+        visibleMessages.add(message);
+    }
+
+    @Override
+    public SQSEvent receive(int maxMessages) {
+        List<SQSMessage> received = new ArrayList<>();
+        SQSMessage message;
+        while (received.size() < maxMessages && (message = visibleMessages.poll()) != null) {
+            message.setReceiptHandle(UUID.randomUUID().toString());
+            inFlightMessages.put(message.getMessageId(), message);
+            received.add(message);
+        }
+
+        SQSEvent event = new SQSEvent();
+        event.setRecords(received);
+        return event;
+    }
+
+    @Override
+    public void complete(SQSEvent event, SQSBatchResponse response) {
+        Set<String> failedMessageIds = new HashSet<>();
+        if (response != null && response.getBatchItemFailures() != null) {
+            for (SQSBatchResponse.BatchItemFailure failure : response.getBatchItemFailures()) {
+                failedMessageIds.add(failure.getItemIdentifier());
+            }
+        }
+
+        for (SQSMessage message : event.getRecords()) {
+            if (inFlightMessages.remove(message.getMessageId()) != null
+                    && failedMessageIds.contains(message.getMessageId())) {
+                visibleMessages.add(message);
+            }
+        }
+    }
+
+    public int getVisibleCount() {
+        return visibleMessages.size();
+    }
+
+    public int getInFlightCount() {
+        return inFlightMessages.size();
+    }
+}
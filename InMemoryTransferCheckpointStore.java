@@ -0,0 +1,32 @@
+package com.capitalone.gallery.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link TransferCheckpointStore} held in memory. Checkpoints do not survive the container, so it is not durable
+ * and transfers using it are neither resumed nor handed off.
+ */
+public class InMemoryTransferCheckpointStore implements TransferCheckpointStore {
+    private final Map<String, TransferCheckpoint> checkpoints = new ConcurrentHashMap<>();
+
+    @Override
+    public TransferCheckpoint load(String targetBucket, String targetKey) {
+        return checkpoints.get(targetBucket + "/" + targetKey);
+    }
+
+    @Override
+    public void save(TransferCheckpoint checkpoint) {
+        checkpoints.put(checkpoint.getTargetBucket() + "/" + checkpoint.getTargetKey(), checkpoint);
+    }
+
+    @Override
+    public void delete(String targetBucket, String targetKey) {
+        checkpoints.remove(targetBucket + "/" + targetKey);
+    }
+
+    @Override
+    public boolean isDurable() {
+        return false;
+    }
+}
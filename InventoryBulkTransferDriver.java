@@ -0,0 +1,361 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+import com.capitalone.gallery.utils.Cat3Cat1TransferUtils.TagBasedAction;
+import gherkin.deps.com.google.gson.Gson;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Bulk transfer driven by an S3 Inventory report instead of ListObjectsV2, for buckets with tens of millions of keys.
+ *
+ * The manifest.json is read for the column layout and the data files, and every gzip'd CSV file is streamed from
+ * S3 line by line. Rows are filtered with the same key and ignore-pattern rules as
+ * {@link RoutingEvaluator#decideFromKey}, and delete markers and noncurrent versions are dropped when the report
+ * includes them; rows that cannot be parsed are logged, counted as malformed and skipped. Matching keys are handed
+ * to {@link BatchTransferProcessor} in batches, bin-packed by size by default so the big transfers start early and
+ * the small ones fill in around them.
+ *
+ * Up to {@code batchesInFlight} batches are processed at once while the next one is read, so the processor is
+ * given new records while the stragglers of a batch are still running, and at most that many batches plus the one
+ * being read are held in memory. The processor's concurrency and in-flight budget are shared by all of them.
+ */
+public class InventoryBulkTransferDriver {
+    private static final Logger logger = LoggerFactory.getLogger(InventoryBulkTransferDriver.class);
+
+    public static final int DEFAULT_INVENTORY_BATCH_SIZE = 1000;
+    public static final int DEFAULT_INVENTORY_BATCHES_IN_FLIGHT = 2;
+    private static final String CSV_FORMAT = "CSV";
+    private static final String BUCKET_ARN_PREFIX = "arn:aws:s3:::";
+
+    private final AmazonS3 inventoryClient;
+    private final BatchTransferProcessor batchProcessor;
+    private final RoutingEvaluator routingEvaluator;
+    private final int batchSize;
+    private final int batchesInFlight;
+    private final ExecutorService batchDispatcher;
+
+    public InventoryBulkTransferDriver(AmazonS3 inventoryClient, BatchTransferProcessor batchProcessor,
+                                       RoutingEvaluator routingEvaluator, int batchSize) {
+        this(inventoryClient, batchProcessor, routingEvaluator, batchSize, DEFAULT_INVENTORY_BATCHES_IN_FLIGHT);
+    }
+
+    /**
+     * @param batchesInFlight how many batches may be processed at once while the next one is read
+     */
+    public InventoryBulkTransferDriver(AmazonS3 inventoryClient, BatchTransferProcessor batchProcessor,
+                                       RoutingEvaluator routingEvaluator, int batchSize, int batchesInFlight) {
+        if (batchSize < 1 || batchesInFlight < 1) {
+            throw new IllegalArgumentException("Inventory batch size and batches in flight must be positive");
+        }
+        this.inventoryClient = inventoryClient;
+        this.batchProcessor = batchProcessor;
+        this.routingEvaluator = routingEvaluator;
+        this.batchSize = batchSize;
+        this.batchesInFlight = batchesInFlight;
+        this.batchDispatcher = Executors.newFixedThreadPool(batchesInFlight,
+                MultipartUploadEngine.daemonThreadFactory("inventory-batch"));
+    }
+
+    /**
+     * Builds a driver on the pooled source client, reading the batch size from INVENTORY_BATCH_SIZE and the
+     * number of batches processed at once from INVENTORY_BATCHES_IN_FLIGHT.
+     */
+    public static InventoryBulkTransferDriver fromEnvironment() {
+        TransferConfig config = TransferConfig.get();
+        return new InventoryBulkTransferDriver(S3ClientPool.getSourceClient(),
+                BatchTransferProcessor.fromEnvironment(new Cat3Cat1TransferUtils(config),
+                        SizeAwareScheduler.Strategy.BIN_PACK), new RoutingEvaluator(config),
+                MultipartUploadEngine.intFromEnvironment("INVENTORY_BATCH_SIZE", DEFAULT_INVENTORY_BATCH_SIZE),
+                MultipartUploadEngine.intFromEnvironment("INVENTORY_BATCHES_IN_FLIGHT",
+                        DEFAULT_INVENTORY_BATCHES_IN_FLIGHT));
+    }
+
+    /**
+     * Transfers every matching object listed by the inventory report whose manifest is at
+     * {@code manifestBucket}/{@code manifestKey}.
+     */
+    public InventorySummary run(String manifestBucket, String manifestKey) throws IOException {
+        long start = System.currentTimeMillis();
+        InventoryManifest manifest = readManifest(manifestBucket, manifestKey);
+        if (!CSV_FORMAT.equalsIgnoreCase(manifest.fileFormat)) {
+            throw new IllegalArgumentException("Unsupported inventory format " + manifest.fileFormat + " in "
+                    + manifestKey + "; only CSV reports are supported");
+        }
+
+        InventoryColumns columns = InventoryColumns.fromSchema(manifest.fileSchema);
+        String dataBucket = manifest.destinationBucket.startsWith(BUCKET_ARN_PREFIX)
+                ? manifest.destinationBucket.substring(BUCKET_ARN_PREFIX.length()) : manifest.destinationBucket;
+
+        InventorySummary summary = new InventorySummary();
+        Deque<Future<List<BundleResult>>> pendingBatches = new ArrayDeque<>();
+        try {
+            for (InventoryFile file : manifest.files) {
+                transferFile(dataBucket, file.key, columns, summary, pendingBatches);
+            }
+        } finally {
+            while (!pendingBatches.isEmpty()) {
+                collect(pendingBatches.removeFirst(), summary);
+            }
+        }
+
+        logger.info("Inventory transfer for s3:{}/{} finished in {} ms: {}", manifestBucket, manifestKey,
+                System.currentTimeMillis() - start, summary);
+        return summary;
+    }
+
+    private InventoryManifest readManifest(String manifestBucket, String manifestKey) throws IOException {
+        try (S3Object manifestObject = inventoryClient.getObject(manifestBucket, manifestKey)) {
+            String manifestJson = IOUtils.toString(manifestObject.getObjectContent(), StandardCharsets.UTF_8);
+            return new Gson().fromJson(manifestJson, InventoryManifest.class);
+        }
+    }
+
+    private void transferFile(String dataBucket, String fileKey, InventoryColumns columns, InventorySummary summary,
+                              Deque<Future<List<BundleResult>>> pendingBatches) throws IOException {
+        logger.info("Reading inventory file s3:{}/{}", dataBucket, fileKey);
+        List<BundleRecord> batch = new ArrayList<>(batchSize);
+        long lineNumber = 0;
+        try (S3Object dataObject = inventoryClient.getObject(dataBucket, fileKey);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(
+                     new GZIPInputStream(dataObject.getObjectContent()), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                summary.rows++;
+                BundleRecord record;
+                try {
+                    record = toRecord(parseCsvLine(line), columns);
+                } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                    logger.warn("Skipping malformed row {} of s3:{}/{}: {}", lineNumber, dataBucket, fileKey,
+                            e.toString());
+                    summary.malformed++;
+                    continue;
+                }
+                if (record == null) {
+                    continue;
+                }
+
+                batch.add(record);
+                if (batch.size() >= batchSize) {
+                    dispatch(batch, summary, pendingBatches);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            dispatch(batch, summary, pendingBatches);
+        }
+    }
+
+    /**
+     * Returns the record for a row, or null when the row is not a current object this Lambda would act on.
+     * Throws IllegalArgumentException or IndexOutOfBoundsException for a row that cannot be read.
+     */
+    private BundleRecord toRecord(List<String> fields, InventoryColumns columns) throws UnsupportedEncodingException {
+        if (fields.size() <= columns.lastIndex) {
+            throw new IllegalArgumentException("Row has " + fields.size() + " fields; the schema needs "
+                    + (columns.lastIndex + 1));
+        }
+        if (columns.isDeleteMarker >= 0 && Boolean.parseBoolean(fields.get(columns.isDeleteMarker))) {
+            return null;
+        }
+        if (columns.isLatest >= 0 && !Boolean.parseBoolean(fields.get(columns.isLatest))) {
+            return null;
+        }
+
+        String key = URLDecoder.decode(fields.get(columns.key), StandardCharsets.UTF_8.name());
+        Optional<TagBasedAction> keyDecision = routingEvaluator.decideFromKey(key);
+        if (keyDecision.isPresent() && keyDecision.get() == TagBasedAction.NONE) {
+            return null;
+        }
+
+        String size = columns.size >= 0 ? fields.get(columns.size) : "";
+        return new BundleRecord(fields.get(columns.bucket), key,
+                size.isEmpty() ? BundleRecord.UNKNOWN_SIZE : Long.parseLong(size),
+                columns.versionId >= 0 ? fields.get(columns.versionId) : null,
+                columns.eTag >= 0 ? fields.get(columns.eTag) : null);
+    }
+
+    /**
+     * Starts processing {@code batch}, first waiting for the oldest pending batch when {@code batchesInFlight}
+     * are already running.
+     */
+    private void dispatch(List<BundleRecord> batch, InventorySummary summary,
+                          Deque<Future<List<BundleResult>>> pendingBatches) throws IOException {
+        if (pendingBatches.size() >= batchesInFlight) {
+            collect(pendingBatches.removeFirst(), summary);
+        }
+        pendingBatches.addLast(batchDispatcher.submit(() -> batchProcessor.process(batch)));
+    }
+
+    private static void collect(Future<List<BundleResult>> pendingBatch, InventorySummary summary)
+            throws IOException {
+        List<BundleResult> results;
+        try {
+            results = pendingBatch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an inventory batch", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Inventory batch failed", e.getCause());
+        }
+
+        for (BundleResult result : results) {
+            summary.matched++;
+            if (!result.isSuccessful()) {
+                summary.failed++;
+            } else if (Cat3Cat1TransferUtils.NO_ACTION_TAKEN.equals(result.getOutcome())) {
+                summary.skipped++;
+            } else {
+                summary.transferred++;
+            }
+        }
+    }
+
+    /**
+     * Splits one inventory CSV line. Every field is quoted and embedded quotes are doubled.
+     */
+    static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Positions of the columns the driver reads, from the manifest's fileSchema. Optional columns are -1 when the
+     * report does not include them.
+     */
+    private static final class InventoryColumns {
+        private final int bucket;
+        private final int key;
+        private final int size;
+        private final int isLatest;
+        private final int isDeleteMarker;
+        private final int versionId;
+        private final int eTag;
+        private final int lastIndex;
+
+        private InventoryColumns(List<String> schema) {
+            this.bucket = schema.indexOf("Bucket");
+            this.key = schema.indexOf("Key");
+            this.size = schema.indexOf("Size");
+            this.isLatest = schema.indexOf("IsLatest");
+            this.isDeleteMarker = schema.indexOf("IsDeleteMarker");
+            this.versionId = schema.indexOf("VersionId");
+            this.eTag = schema.indexOf("ETag");
+            this.lastIndex = Math.max(Math.max(Math.max(bucket, key), Math.max(size, isLatest)),
+                    Math.max(isDeleteMarker, Math.max(versionId, eTag)));
+        }
+
+        static InventoryColumns fromSchema(String fileSchema) {
+            List<String> schema = new ArrayList<>();
+            for (String column : fileSchema.split(",")) {
+                schema.add(column.trim());
+            }
+
+            InventoryColumns columns = new InventoryColumns(schema);
+            if (columns.bucket < 0 || columns.key < 0) {
+                throw new IllegalArgumentException("Inventory schema has no Bucket or Key column: " + fileSchema);
+            }
+            return columns;
+        }
+    }
+
+    private static final class InventoryManifest {
+        private String destinationBucket;
+        private String fileFormat;
+        private String fileSchema;
+        private List<InventoryFile> files;
+    }
+
+    private static final class InventoryFile {
+        private String key;
+    }
+
+    /**
+     * Row counts of one inventory run.
+     */
+    public static final class InventorySummary {
+        private long rows;
+        private long matched;
+        private long transferred;
+        private long skipped;
+        private long failed;
+        private long malformed;
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getMatched() {
+            return matched;
+        }
+
+        public long getTransferred() {
+            return transferred;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public long getMalformed() {
+            return malformed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("rows=%d, matched=%d, transferred=%d, skipped=%d, failed=%d, malformed=%d", rows,
+                    matched, transferred, skipped, failed, malformed);
+        }
+    }
+}
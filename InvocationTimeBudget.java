@@ -0,0 +1,172 @@
+package com.capitalone.gallery.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The time an invocation has left for its transfers, less a safety margin for finishing up cleanly.
+ *
+ * A transfer reads its source through {@link #watch}, which measures the transfer rate as the bytes go by and
+ * projects when the transfer will finish. Once the projection runs past the deadline the stream fails with
+ * {@link OutOfTimeException}, so the transfer can checkpoint and hand the rest of the work to another invocation
+ * instead of running until the invocation is killed.
+ */
+public class InvocationTimeBudget {
+    public static final int DEFAULT_SAFETY_MARGIN_MILLIS = 10_000;
+    private static final long CHECK_INTERVAL_BYTES = 8L * 1024L * 1024L;
+    private static final long MIN_SAMPLE_MILLIS = 1_000;
+
+    private static final InvocationTimeBudget UNLIMITED = new InvocationTimeBudget(Long.MAX_VALUE, 0);
+
+    private final long deadlineMillis;
+    private final long budgetMillis;
+
+    public InvocationTimeBudget(long remainingMillis, long safetyMarginMillis) {
+        this.deadlineMillis = remainingMillis == Long.MAX_VALUE
+                ? Long.MAX_VALUE : System.currentTimeMillis() + remainingMillis - safetyMarginMillis;
+        this.budgetMillis = remainingMillis == Long.MAX_VALUE ? Long.MAX_VALUE : remainingMillis - safetyMarginMillis;
+    }
+
+    /**
+     * A budget for {@code remainingMillis} with the safety margin from HANDOFF_SAFETY_MARGIN_MILLIS.
+     */
+    public static InvocationTimeBudget fromEnvironment(long remainingMillis) {
+        if (remainingMillis == Long.MAX_VALUE) {
+            return UNLIMITED;
+        }
+        return new InvocationTimeBudget(remainingMillis,
+                MultipartUploadEngine.intFromEnvironment("HANDOFF_SAFETY_MARGIN_MILLIS", DEFAULT_SAFETY_MARGIN_MILLIS));
+    }
+
+    public static InvocationTimeBudget unlimited() {
+        return UNLIMITED;
+    }
+
+    public boolean isUnlimited() {
+        return deadlineMillis == Long.MAX_VALUE;
+    }
+
+    public long getRemainingMillis() {
+        return isUnlimited() ? Long.MAX_VALUE : deadlineMillis - System.currentTimeMillis();
+    }
+
+    /**
+     * Returns true when {@code bytesRemaining} more bytes can be moved before the deadline at the rate of
+     * {@code bytesDone} bytes in {@code elapsedMillis}. Too short a sample is taken as able to finish.
+     */
+    public boolean canFinish(long bytesDone, long elapsedMillis, long bytesRemaining) {
+        if (isUnlimited() || bytesRemaining <= 0) {
+            return true;
+        }
+        long remainingMillis = getRemainingMillis();
+        if (remainingMillis <= 0) {
+            return false;
+        }
+        if (bytesDone <= 0 || elapsedMillis < MIN_SAMPLE_MILLIS) {
+            return true;
+        }
+        return (double) bytesRemaining * elapsedMillis / bytesDone <= remainingMillis;
+    }
+
+    /**
+     * Wraps the source of a transfer that has {@code totalBytes} left to read. The returned stream throws
+     * {@link OutOfTimeException} from a read once the transfer is projected to miss the deadline.
+     */
+    public InputStream watch(InputStream source, long totalBytes) {
+        return isUnlimited() || totalBytes < 0 ? source : new WatchedInputStream(source, totalBytes);
+    }
+
+    /**
+     * Returns the {@link OutOfTimeException} in the cause chain of {@code error}, or null when there is none. The
+     * SDK and the encryptor wrap exceptions thrown by the streams they read, so a transfer that ran out of time does
+     * not always surface the exception itself.
+     */
+    public static OutOfTimeException outOfTimeCause(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OutOfTimeException) {
+                return (OutOfTimeException) cause;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Thrown when a transfer stops because it cannot finish in the time left. Work that was checkpointed before
+     * it was thrown can be continued by another invocation.
+     */
+    public static class OutOfTimeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long projectedMillis;
+        private final long budgetMillis;
+
+        public OutOfTimeException(String message) {
+            this(message, -1, Long.MAX_VALUE);
+        }
+
+        /**
+         * @param projectedMillis how long the whole transfer is projected to take at the measured rate
+         * @param budgetMillis    the time the whole budget allowed, from its creation to its deadline
+         */
+        public OutOfTimeException(String message, long projectedMillis, long budgetMillis) {
+            super(message);
+            this.projectedMillis = projectedMillis;
+            this.budgetMillis = budgetMillis;
+        }
+
+        /**
+         * True when the transfer would not finish even if it had the whole budget to itself, so starting it over in
+         * an invocation with the same budget cannot succeed either.
+         */
+        public boolean exceedsWholeBudget() {
+            return projectedMillis > budgetMillis;
+        }
+    }
+
+    private final class WatchedInputStream extends FilterInputStream {
+        private final long totalBytes;
+        private final long startMillis = System.currentTimeMillis();
+        private long bytesRead;
+        private long nextCheck = CHECK_INTERVAL_BYTES;
+
+        WatchedInputStream(InputStream source, long totalBytes) {
+            super(source);
+            this.totalBytes = totalBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                advance(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                advance(count);
+            }
+            return count;
+        }
+
+        private void advance(int count) throws OutOfTimeException {
+            bytesRead += count;
+            if (bytesRead < nextCheck) {
+                return;
+            }
+            nextCheck = bytesRead + CHECK_INTERVAL_BYTES;
+
+            long elapsedMillis = System.currentTimeMillis() - startMillis;
+            if (!canFinish(bytesRead, elapsedMillis, totalBytes - bytesRead)) {
+                long projectedMillis = (long) ((double) totalBytes * elapsedMillis / bytesRead);
+                throw new OutOfTimeException(String.format("Projected to miss the deadline with %d of %d bytes "
+                        + "read in %d ms and %d ms left", bytesRead, totalBytes, elapsedMillis, getRemainingMillis()),
+                        projectedMillis, budgetMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.capitalone.gallery.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link IdempotencyStore} held in memory with room for {@code capacity} keys, evicting the least recently used.
+ * Catches duplicates delivered to the same warm container, which covers the common case of a duplicate arriving
+ * soon after the original.
+ */
+public class LruIdempotencyStore implements IdempotencyStore {
+    private static final long COMPLETED = Long.MAX_VALUE;
+
+    private final long claimTtlMillis;
+    private final Map<String, Long> claimExpiries;
+
+    public LruIdempotencyStore(final int capacity, long claimTtlMillis) {
+        this.claimTtlMillis = claimTtlMillis;
+        this.claimExpiries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @Override
+    public synchronized boolean tryClaim(String idempotencyKey) {
+        long now = System.currentTimeMillis();
+        Long claimExpiry = claimExpiries.get(idempotencyKey);
+        if (claimExpiry != null && claimExpiry > now) {
+            return false;
+        }
+        claimExpiries.put(idempotencyKey, now + claimTtlMillis);
+        return true;
+    }
+
+    @Override
+    public synchronized void markCompleted(String idempotencyKey) {
+        claimExpiries.put(idempotencyKey, COMPLETED);
+    }
+
+    @Override
+    public synchronized void release(String idempotencyKey) {
+        Long claimExpiry = claimExpiries.get(idempotencyKey);
+        if (claimExpiry != null && claimExpiry != COMPLETED) {
+            claimExpiries.remove(idempotencyKey);
+        }
+    }
+}
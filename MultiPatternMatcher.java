@@ -0,0 +1,250 @@
+package com.capitalone.gallery.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Matches a file name against a whole list of regex rules at once. Rules that are plain literals, literal
+ * prefixes ({@code abc.*}) or literal suffixes ({@code .*\.zip}) are answered from a hash set and two tries,
+ * so their cost depends only on the length of the file name and not on how many rules there are.
+ *
+ * The remaining rules are indexed by the literal text they must start with, in a third trie. A name is only run
+ * against the rules whose leading literal it starts with, so adding rules with distinct leading literals does not
+ * slow down names that match none of them. Rules without a leading literal, including those that contain an
+ * alternation, are combined into a single alternation, and rules with back-references are matched one by one; the
+ * cost of both still grows with how many such rules there are.
+ */
+final class MultiPatternMatcher {
+    private static final String META_CHARACTERS = "\\.[]{}()*+?^$|";
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\[1-9]");
+
+    private final Set<String> exactNames = new HashSet<>();
+    private final TrieNode prefixes = new TrieNode();
+    private final TrieNode reversedSuffixes = new TrieNode();
+    private final TrieNode residualIndex = new TrieNode();
+    private final List<Pattern> residualPatterns = new ArrayList<>();
+    private final Pattern allRules;
+    private final int literalRuleCount;
+
+    MultiPatternMatcher(List<String> patternStrings) {
+        StringBuilder residualAlternation = new StringBuilder();
+        StringBuilder allAlternation = new StringBuilder();
+        List<Pattern> backReferencePatterns = new ArrayList<>();
+        int literalRules = 0;
+
+        for (String patternString : patternStrings) {
+            // compiled on its own first so an invalid rule is reported by itself
+            Pattern compiled = Pattern.compile(patternString);
+            if (BACK_REFERENCE.matcher(patternString).find()) {
+                backReferencePatterns.add(compiled);
+                continue;
+            }
+            appendAlternative(allAlternation, patternString);
+
+            String body = stripAnchors(patternString);
+            String literal;
+            if ((literal = unescapeLiteral(body)) != null) {
+                exactNames.add(literal);
+                literalRules++;
+            } else if (body.endsWith(".*")
+                    && (literal = unescapeLiteral(body.substring(0, body.length() - 2))) != null) {
+                prefixes.add(literal);
+                literalRules++;
+            } else if (body.startsWith(".*") && (literal = unescapeLiteral(body.substring(2))) != null) {
+                reversedSuffixes.add(new StringBuilder(literal).reverse().toString());
+                literalRules++;
+            } else if (!(literal = leadingLiteral(body)).isEmpty()) {
+                residualIndex.addPattern(literal, compiled);
+            } else {
+                appendAlternative(residualAlternation, patternString);
+            }
+        }
+
+        if (residualAlternation.length() > 0) {
+            residualPatterns.add(Pattern.compile(residualAlternation.toString()));
+        }
+        residualPatterns.addAll(backReferencePatterns);
+        this.allRules = allAlternation.length() > 0 ? Pattern.compile(allAlternation.toString()) : null;
+        this.literalRuleCount = literalRules;
+    }
+
+    boolean matches(String name) {
+        if (containsLineTerminator(name)) {
+            // '.' does not match line terminators, so the literal fast paths do not apply
+            if (allRules != null && allRules.matcher(name).matches()) {
+                return true;
+            }
+        } else if (exactNames.contains(name)
+                || prefixes.matchesPrefixOf(name)
+                || reversedSuffixes.matchesSuffixOf(name)) {
+            return true;
+        }
+
+        if (residualIndex.matchesPatternAlongPrefixesOf(name)) {
+            return true;
+        }
+        for (Pattern residualPattern : residualPatterns) {
+            if (residualPattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int getLiteralRuleCount() {
+        return literalRuleCount;
+    }
+
+    private static void appendAlternative(StringBuilder alternation, String patternString) {
+        if (alternation.length() > 0) {
+            alternation.append('|');
+        }
+        alternation.append("(?:").append(patternString).append(')');
+    }
+
+    /**
+     * Leading '^' and trailing '$' are redundant for a full match. A trailing "\$" is an escaped dollar
+     * and is left in place.
+     */
+    private static String stripAnchors(String patternString) {
+        String body = patternString;
+        if (body.startsWith("^")) {
+            body = body.substring(1);
+        }
+        if (body.endsWith("$") && !body.endsWith("\\$")) {
+            body = body.substring(0, body.length() - 1);
+        }
+        return body;
+    }
+
+    /**
+     * Returns the literal text the regex matches, or null when it contains any regex construct other than
+     * escaped punctuation.
+     */
+    private static String unescapeLiteral(String regex) {
+        StringBuilder literal = new StringBuilder(regex.length());
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 == regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    return null;
+                }
+                literal.append(regex.charAt(++i));
+            } else if (META_CHARACTERS.indexOf(c) >= 0) {
+                return null;
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
+
+    /**
+     * Returns the literal text every match of the regex starts with, stopping before any regex construct and
+     * before a character that is followed by a quantifier. Returns an empty string for a regex with an
+     * alternation, since its branches need not share a start.
+     */
+    private static String leadingLiteral(String regex) {
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length()) {
+                i++;
+            } else if (c == '|') {
+                return "";
+            }
+        }
+
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            int next = i + 1;
+            if (c == '\\') {
+                if (next == regex.length() || Character.isLetterOrDigit(regex.charAt(next))) {
+                    break;
+                }
+                c = regex.charAt(next++);
+            } else if (META_CHARACTERS.indexOf(c) >= 0) {
+                break;
+            }
+            if (next < regex.length() && "*+?{".indexOf(regex.charAt(next)) >= 0) {
+                break;
+            }
+            literal.append(c);
+            i = next - 1;
+        }
+        return literal.toString();
+    }
+
+    private static boolean containsLineTerminator(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class TrieNode {
+        private final Map<Character, TrieNode> children = new HashMap<>();
+        private final List<Pattern> patterns = new ArrayList<>();
+        private boolean terminal;
+
+        void add(String text) {
+            nodeFor(text).terminal = true;
+        }
+
+        void addPattern(String prefix, Pattern pattern) {
+            nodeFor(prefix).patterns.add(pattern);
+        }
+
+        private TrieNode nodeFor(String text) {
+            TrieNode node = this;
+            for (int i = 0; i < text.length(); i++) {
+                node = node.children.computeIfAbsent(text.charAt(i), c -> new TrieNode());
+            }
+            return node;
+        }
+
+        /**
+         * Runs the patterns stored under every prefix of {@code name} against the whole name.
+         */
+        boolean matchesPatternAlongPrefixesOf(String name) {
+            TrieNode node = this;
+            for (int i = 0; node != null; i++) {
+                for (Pattern pattern : node.patterns) {
+                    if (pattern.matcher(name).matches()) {
+                        return true;
+                    }
+                }
+                node = i < name.length() ? node.children.get(name.charAt(i)) : null;
+            }
+            return false;
+        }
+
+        boolean matchesPrefixOf(String name) {
+            TrieNode node = this;
+            for (int i = 0; !node.terminal; i++) {
+                if (i == name.length() || (node = node.children.get(name.charAt(i))) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean matchesSuffixOf(String name) {
+            TrieNode node = this;
+            for (int i = name.length() - 1; !node.terminal; i--) {
+                if (i < 0 || (node = node.children.get(name.charAt(i))) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
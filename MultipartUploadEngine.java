@@ -0,0 +1,187 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ObjectTagging;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.capitalone.gallery.utils.MultipartUploadOutputStream.UploadProgressListener;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads bundles to S3 as multipart uploads with a configurable part size and a configurable number
+ * of parts uploaded concurrently. Works with any AmazonS3 client, so the same engine serves both the
+ * source account client and the cross-account CAT2 client. The parts in flight for a client are further
+ * limited by that client's {@link AdaptiveConcurrencyController}.
+ */
+public class MultipartUploadEngine {
+    private static final Logger logger = LoggerFactory.getLogger(MultipartUploadEngine.class);
+
+    public static final int DEFAULT_PART_SIZE_MB = 16;
+    public static final int DEFAULT_CONCURRENT_PARTS = 4;
+    private static final int MAX_PARTS = 10000;
+    private static final int MAX_PART_SIZE = Integer.MAX_VALUE - 8;
+
+    private final int partSize;
+    private final int maxConcurrentParts;
+    private final ExecutorService executor;
+
+    public MultipartUploadEngine(int partSize, int maxConcurrentParts) {
+        if (partSize < MultipartUploadOutputStream.MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be at least "
+                    + MultipartUploadOutputStream.MIN_PART_SIZE + " bytes");
+        }
+        if (maxConcurrentParts < 1) {
+            throw new IllegalArgumentException("At least one concurrent part upload is required");
+        }
+        this.partSize = partSize;
+        this.maxConcurrentParts = maxConcurrentParts;
+        this.executor = Executors.newCachedThreadPool(daemonThreadFactory("s3-part-upload"));
+    }
+
+    /**
+     * Builds an engine from the UPLOAD_PART_SIZE_MB and UPLOAD_CONCURRENCY environment variables,
+     * falling back to the defaults when they are not set.
+     */
+    public static MultipartUploadEngine fromEnvironment() {
+        int partSizeMb = intFromEnvironment("UPLOAD_PART_SIZE_MB", DEFAULT_PART_SIZE_MB);
+        int concurrentParts = intFromEnvironment("UPLOAD_CONCURRENCY", DEFAULT_CONCURRENT_PARTS);
+        logger.info("Multipart upload engine configured with {} MB parts and {} concurrent part uploads",
+                partSizeMb, concurrentParts);
+
+        return new MultipartUploadEngine(partSizeMb * 1024 * 1024, concurrentParts);
+    }
+
+    /**
+     * Opens a stream that uploads everything written to it. Close it to complete the upload, or call
+     * {@link MultipartUploadOutputStream#abort()} to discard it.
+     */
+    public MultipartUploadOutputStream openUploadStream(AmazonS3 amazonS3, String bucket, String key,
+                                                        ObjectMetadata objectMetadata, ObjectTagging tagging) {
+        return new MultipartUploadOutputStream(amazonS3, bucket, key, objectMetadata, tagging, partSize, executor,
+                maxConcurrentParts, S3ClientPool.concurrencyFor(amazonS3));
+    }
+
+    /**
+     * Like {@link #openUploadStream(AmazonS3, String, String, ObjectMetadata, ObjectTagging)} for content expected
+     * to be about {@code contentLength} bytes, with parts sized to stay within the S3 part limit. A negative length
+     * uses the configured part size.
+     */
+    public MultipartUploadOutputStream openUploadStream(AmazonS3 amazonS3, String bucket, String key,
+                                                        ObjectMetadata objectMetadata, ObjectTagging tagging,
+                                                        long contentLength) {
+        int streamPartSize = contentLength < 0 ? partSize : partSizeFor(contentLength);
+        return new MultipartUploadOutputStream(amazonS3, bucket, key, objectMetadata, tagging, streamPartSize,
+                executor, maxConcurrentParts, S3ClientPool.concurrencyFor(amazonS3));
+    }
+
+    /**
+     * Uploads the whole of {@code content} and returns the number of bytes sent. The multipart upload is
+     * aborted if anything fails.
+     */
+    public long upload(AmazonS3 amazonS3, String bucket, String key, InputStream content,
+                       ObjectMetadata objectMetadata, ObjectTagging tagging) throws IOException {
+        return uploadThrough(openUploadStream(amazonS3, bucket, key, objectMetadata, tagging), content);
+    }
+
+    /**
+     * Uploads {@code content} whose length is already known, e.g. from the source object's metadata. Content
+     * that fits in one part is streamed with a single putObject carrying the content length, so nothing is
+     * buffered; larger content goes through a multipart upload with parts sized to stay within the S3 part
+     * limit. A negative length falls back to {@link #upload(AmazonS3, String, String, InputStream,
+     * ObjectMetadata, ObjectTagging)}.
+     */
+    public long upload(AmazonS3 amazonS3, String bucket, String key, InputStream content, long contentLength,
+                       ObjectMetadata objectMetadata, ObjectTagging tagging) throws IOException {
+        if (contentLength < 0) {
+            return upload(amazonS3, bucket, key, content, objectMetadata, tagging);
+        }
+
+        if (contentLength <= partSize) {
+            objectMetadata.setContentLength(contentLength);
+            PutObjectRequest putObjectRequest = new PutObjectRequest(bucket, key, content, objectMetadata);
+            putObjectRequest.setTagging(tagging);
+            amazonS3.putObject(putObjectRequest);
+            return contentLength;
+        }
+
+        return uploadThrough(new MultipartUploadOutputStream(amazonS3, bucket, key, objectMetadata, tagging,
+                partSizeFor(contentLength), executor, maxConcurrentParts, S3ClientPool.concurrencyFor(amazonS3)),
+                content);
+    }
+
+    /**
+     * Opens a resumable upload stream with the given part size. With a {@code resumeUploadId} it continues that
+     * upload after {@code completedParts}.
+     */
+    public MultipartUploadOutputStream openResumableUploadStream(AmazonS3 amazonS3, String bucket, String key,
+                                                                 ObjectMetadata objectMetadata, ObjectTagging tagging,
+                                                                 int streamPartSize, String resumeUploadId,
+                                                                 List<PartETag> completedParts,
+                                                                 UploadProgressListener progressListener) {
+        return new MultipartUploadOutputStream(amazonS3, bucket, key, objectMetadata, tagging, streamPartSize,
+                executor, maxConcurrentParts, S3ClientPool.concurrencyFor(amazonS3), resumeUploadId, completedParts,
+                progressListener);
+    }
+
+    /**
+     * The part size for content of a known length: the configured size, or larger when needed to stay within
+     * the S3 part limit.
+     */
+    int partSizeFor(long contentLength) {
+        long minimumPartSize = (contentLength + MAX_PARTS - 1) / MAX_PARTS;
+        return (int) Math.min(MAX_PART_SIZE, Math.max(partSize, minimumPartSize));
+    }
+
+    private long uploadThrough(MultipartUploadOutputStream uploadStream, InputStream content) throws IOException {
+        try {
+            IOUtils.copyLarge(content, uploadStream);
+            uploadStream.close();
+        } catch (IOException | RuntimeException e) {
+            uploadStream.abort();
+            throw e;
+        }
+
+        return uploadStream.getBytesWritten();
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+    public int getMaxConcurrentParts() {
+        return maxConcurrentParts;
+    }
+
+    static int intFromEnvironment(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Environment variable " + name + " must be an integer: " + value, e);
+        }
+    }
+
+    static ThreadFactory daemonThreadFactory(String namePrefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
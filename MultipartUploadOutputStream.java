@@ -0,0 +1,321 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ObjectTagging;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * OutputStream that writes straight into an S3 multipart upload. Each full part buffer is handed to
+ * the executor and uploaded in the background, with at most {@code maxConcurrentParts} parts in flight,
+ * so memory stays bounded at {@code maxConcurrentParts + 1} part buffers. Content smaller than a single
+ * part is sent with a plain putObject instead. Each part request also waits for the client's shared
+ * {@link AdaptiveConcurrencyController}, which caps the parts in flight across all streams.
+ *
+ * Closing the stream waits for the outstanding parts and completes the upload. On failure callers must
+ * call {@link #abort()} rather than {@link #close()} so a partial object is never committed.
+ *
+ * A stream with an {@link UploadProgressListener} is resumable: it reports the upload id and every uploaded
+ * part, can continue an existing upload after its completed parts, and leaves the upload in place when it
+ * fails so a later attempt can pick it up.
+ */
+public class MultipartUploadOutputStream extends OutputStream {
+    private static final Logger logger = LoggerFactory.getLogger(MultipartUploadOutputStream.class);
+
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final AmazonS3 amazonS3;
+    private final String bucket;
+    private final String key;
+    private final ObjectMetadata objectMetadata;
+    private final ObjectTagging tagging;
+    private final int partSize;
+    private final ExecutorService executor;
+    private final Semaphore partsInFlight;
+    private final AdaptiveConcurrencyController requestConcurrency;
+    private final List<PartETag> resumedParts;
+    private final UploadProgressListener progressListener;
+    private final Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+
+    private final List<Future<PartETag>> pendingParts = new ArrayList<>();
+    private byte[] buffer;
+    private String uploadId;
+    private int position;
+    private long bytesWritten;
+    private boolean closed;
+
+    public MultipartUploadOutputStream(AmazonS3 amazonS3, String bucket, String key, ObjectMetadata objectMetadata,
+                                       ObjectTagging tagging, int partSize, ExecutorService executor,
+                                       int maxConcurrentParts, AdaptiveConcurrencyController requestConcurrency) {
+        this(amazonS3, bucket, key, objectMetadata, tagging, partSize, executor, maxConcurrentParts, requestConcurrency,
+                null, Collections.<PartETag>emptyList(), null);
+    }
+
+    /**
+     * Opens a resumable stream. With a {@code resumeUploadId} the stream continues that upload, numbering its
+     * parts after {@code completedParts}; the caller must then write only the content that follows those parts.
+     */
+    public MultipartUploadOutputStream(AmazonS3 amazonS3, String bucket, String key, ObjectMetadata objectMetadata,
+                                       ObjectTagging tagging, int partSize, ExecutorService executor,
+                                       int maxConcurrentParts, AdaptiveConcurrencyController requestConcurrency,
+                                       String resumeUploadId, List<PartETag> completedParts,
+                                       UploadProgressListener progressListener) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be at least " + MIN_PART_SIZE + " bytes");
+        }
+        this.amazonS3 = amazonS3;
+        this.bucket = bucket;
+        this.key = key;
+        this.objectMetadata = objectMetadata;
+        this.tagging = tagging;
+        this.partSize = partSize;
+        this.executor = executor;
+        this.partsInFlight = new Semaphore(maxConcurrentParts);
+        this.requestConcurrency = requestConcurrency;
+        this.uploadId = resumeUploadId;
+        this.resumedParts = new ArrayList<>(completedParts);
+        this.progressListener = progressListener;
+        this.buffer = new byte[partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        buffer[position++] = (byte) b;
+        bytesWritten++;
+        if (position == buffer.length) {
+            uploadBufferedPart();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int count = Math.min(len, buffer.length - position);
+            System.arraycopy(b, off, buffer, position, count);
+            position += count;
+            bytesWritten += count;
+            off += count;
+            len -= count;
+            if (position == buffer.length) {
+                uploadBufferedPart();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (uploadId == null) {
+                putSingleObject();
+                return;
+            }
+
+            if (position > 0) {
+                submitPart();
+            }
+            List<PartETag> partETags = new ArrayList<>(resumedParts);
+            for (Future<PartETag> pendingPart : pendingParts) {
+                partETags.add(pendingPart.get());
+            }
+            amazonS3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+            logger.info("Completed multipart upload of {} parts ({} bytes) to s3:{}/{}", partETags.size(),
+                    bytesWritten, bucket, key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon();
+            throw new IOException("Interrupted while uploading to s3:" + bucket + "/" + key, e);
+        } catch (ExecutionException | RuntimeException e) {
+            abandon();
+            throw new IOException("Upload to s3:" + bucket + "/" + key + " failed", e);
+        }
+    }
+
+    /**
+     * Discards everything written so far, cancels parts that have not started and aborts the multipart
+     * upload if one was started.
+     */
+    public void abort() {
+        cancelPendingParts();
+        if (uploadId == null) {
+            return;
+        }
+
+        try {
+            amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            logger.info("Aborted multipart upload {} to s3:{}/{}", uploadId, bucket, key);
+        } catch (RuntimeException e) {
+            logger.error("Unable to abort multipart upload {} to s3:{}/{}", uploadId, bucket, key, e);
+        } finally {
+            uploadId = null;
+        }
+    }
+
+    /**
+     * Stops a resumable stream without completing the upload: waits for the parts already submitted, so they are
+     * reported to the listener, and discards content buffered for the next part.
+     */
+    public void suspend() throws IOException {
+        if (progressListener == null) {
+            throw new IllegalStateException("Only a resumable upload stream can be suspended");
+        }
+        closed = true;
+
+        try {
+            for (Future<PartETag> pendingPart : pendingParts) {
+                pendingPart.get();
+            }
+            logger.info("Suspended multipart upload {} to s3:{}/{} after {} bytes", uploadId, bucket, key,
+                    bytesWritten - position);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon();
+            throw new IOException("Interrupted while suspending upload to s3:" + bucket + "/" + key, e);
+        } catch (ExecutionException e) {
+            abandon();
+            throw new IOException("Upload to s3:" + bucket + "/" + key + " failed", e);
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Stops a failed stream: a resumable stream keeps its upload for the next attempt, any other stream is aborted.
+     */
+    private void abandon() {
+        if (progressListener == null) {
+            abort();
+        } else {
+            cancelPendingParts();
+            logger.info("Left multipart upload {} to s3:{}/{} in place for a later attempt", uploadId, bucket, key);
+        }
+    }
+
+    private void cancelPendingParts() {
+        closed = true;
+        for (Future<PartETag> pendingPart : pendingParts) {
+            pendingPart.cancel(true);
+        }
+    }
+
+    private void uploadBufferedPart() throws IOException {
+        try {
+            if (uploadId == null) {
+                InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(bucket, key, objectMetadata)
+                        .withTagging(tagging);
+                uploadId = amazonS3.initiateMultipartUpload(initiateRequest).getUploadId();
+                logger.info("Started multipart upload {} to s3:{}/{}", uploadId, bucket, key);
+                if (progressListener != null) {
+                    progressListener.uploadStarted(uploadId);
+                }
+            }
+            failFastOnCompletedParts();
+            submitPart();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon();
+            throw new IOException("Interrupted while uploading to s3:" + bucket + "/" + key, e);
+        } catch (ExecutionException | RuntimeException e) {
+            abandon();
+            throw new IOException("Upload of part to s3:" + bucket + "/" + key + " failed", e);
+        }
+    }
+
+    private void submitPart() throws InterruptedException {
+        final byte[] partBuffer = buffer;
+        final int length = position;
+        final int partNumber = resumedParts.size() + pendingParts.size() + 1;
+        final String currentUploadId = uploadId;
+
+        partsInFlight.acquire();
+        try {
+            pendingParts.add(executor.submit(() -> {
+                try {
+                    UploadPartRequest uploadPartRequest = new UploadPartRequest()
+                            .withBucketName(bucket)
+                            .withKey(key)
+                            .withUploadId(currentUploadId)
+                            .withPartNumber(partNumber)
+                            .withPartSize(length)
+                            .withInputStream(new ByteArrayInputStream(partBuffer, 0, length));
+                    PartETag partETag = requestConcurrency.call(length,
+                            () -> amazonS3.uploadPart(uploadPartRequest).getPartETag());
+                    if (progressListener != null) {
+                        progressListener.partCompleted(partETag);
+                    }
+                    return partETag;
+                } finally {
+                    freeBuffers.offer(partBuffer);
+                    partsInFlight.release();
+                }
+            }));
+        } catch (RuntimeException e) {
+            partsInFlight.release();
+            throw e;
+        }
+
+        byte[] recycled = freeBuffers.poll();
+        buffer = recycled != null ? recycled : new byte[partSize];
+        position = 0;
+    }
+
+    private void failFastOnCompletedParts() throws InterruptedException, ExecutionException {
+        for (Future<PartETag> pendingPart : pendingParts) {
+            if (pendingPart.isDone()) {
+                pendingPart.get();
+            }
+        }
+    }
+
+    private void putSingleObject() {
+        objectMetadata.setContentLength(position);
+        PutObjectRequest putObjectRequest = new PutObjectRequest(bucket, key,
+                new ByteArrayInputStream(buffer, 0, position), objectMetadata);
+        putObjectRequest.setTagging(tagging);
+        amazonS3.putObject(putObjectRequest);
+    }
+
+    /**
+     * Notified as a resumable upload makes progress. Parts are reported from the upload threads, in completion
+     * order rather than part order.
+     */
+    public interface UploadProgressListener {
+        void uploadStarted(String uploadId);
+
+        void partCompleted(PartETag partETag);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Upload stream to s3:" + bucket + "/" + key + " is closed");
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads large S3 objects as parallel byte-range GETs and reassembles the ranges in order, so the
+ * consumer still reads a single ordered InputStream. At most {@code parallelism} ranges are fetched
+ * ahead of the reader, which caps memory at {@code parallelism + 1} range buffers. Range requests also
+ * wait for the client's shared {@link AdaptiveConcurrencyController}, and a throttled range is retried
+ * after a short backoff.
+ *
+ * Every GET carries the source's ETag as a matching constraint, so all ranges come from the same version of the
+ * object. If the object is overwritten during the download the next GET fails instead of splicing two versions.
+ */
+public class ParallelRangeDownloader {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelRangeDownloader.class);
+
+    public static final int DEFAULT_RANGE_SIZE_MB = 16;
+    public static final int DEFAULT_PARALLELISM = 4;
+    private static final int MAX_RANGE_ATTEMPTS = 3;
+    private static final long THROTTLE_BACKOFF_MILLIS = 200;
+
+    private final int rangeSize;
+    private final int parallelism;
+    private final ExecutorService executor;
+
+    public ParallelRangeDownloader(int rangeSize, int parallelism) {
+        if (rangeSize < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("Range size and parallelism must be positive");
+        }
+        this.rangeSize = rangeSize;
+        this.parallelism = parallelism;
+        this.executor = Executors.newCachedThreadPool(MultipartUploadEngine.daemonThreadFactory("s3-range-download"));
+    }
+
+    /**
+     * Builds a downloader from the DOWNLOAD_RANGE_SIZE_MB and DOWNLOAD_CONCURRENCY environment variables,
+     * falling back to the defaults when they are not set.
+     */
+    public static ParallelRangeDownloader fromEnvironment() {
+        int rangeSizeMb = MultipartUploadEngine.intFromEnvironment("DOWNLOAD_RANGE_SIZE_MB", DEFAULT_RANGE_SIZE_MB);
+        int parallelism = MultipartUploadEngine.intFromEnvironment("DOWNLOAD_CONCURRENCY", DEFAULT_PARALLELISM);
+        logger.info("Range downloader configured with {} MB ranges and {} concurrent range requests",
+                rangeSizeMb, parallelism);
+
+        return new ParallelRangeDownloader(rangeSizeMb * 1024 * 1024, parallelism);
+    }
+
+    /**
+     * Opens the object for reading, looking up its length and ETag first.
+     */
+    public InputStream openStream(AmazonS3 amazonS3, String bucket, String key) throws IOException {
+        ObjectMetadata metadata = amazonS3.getObjectMetadata(bucket, key);
+        return openStream(amazonS3, bucket, key, metadata.getContentLength(), metadata.getETag());
+    }
+
+    /**
+     * Opens the version of the object with ETag {@code eTag} for reading. Objects that fit in a single range are
+     * read with one plain GET. A null ETag reads whatever version is current at each GET.
+     */
+    public InputStream openStream(AmazonS3 amazonS3, String bucket, String key, long contentLength, String eTag)
+            throws IOException {
+        return openStream(amazonS3, bucket, key, contentLength, eTag, 0);
+    }
+
+    /**
+     * Opens the object for reading from {@code startOffset}, for resuming a transfer part way through.
+     */
+    public InputStream openStream(AmazonS3 amazonS3, String bucket, String key, long contentLength, String eTag,
+                                  long startOffset) throws IOException {
+        if (startOffset >= contentLength && startOffset > 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        if (contentLength - startOffset <= rangeSize) {
+            GetObjectRequest getObjectRequest = pinned(new GetObjectRequest(bucket, key), eTag);
+            if (startOffset > 0) {
+                getObjectRequest.setRange(startOffset, contentLength - 1);
+            }
+            return getPinnedObject(amazonS3, getObjectRequest).getObjectContent();
+        }
+
+        logger.info("Downloading s3:{}/{} ({} bytes from offset {}) as parallel ranges", bucket, key, contentLength,
+                startOffset);
+        return new RangeInputStream(amazonS3, bucket, key, contentLength, eTag, startOffset);
+    }
+
+    private static GetObjectRequest pinned(GetObjectRequest request, String eTag) {
+        return eTag == null ? request : request.withMatchingETagConstraint(eTag);
+    }
+
+    /**
+     * The SDK returns null instead of the object when the ETag constraint is not met.
+     */
+    private static S3Object getPinnedObject(AmazonS3 amazonS3, GetObjectRequest request) throws IOException {
+        S3Object object = amazonS3.getObject(request);
+        if (object == null) {
+            throw new SourceChangedException("s3:" + request.getBucketName() + "/" + request.getKey()
+                    + " no longer has ETag " + request.getMatchingETagConstraints());
+        }
+        return object;
+    }
+
+    private byte[] fetchRange(AmazonS3 amazonS3, AdaptiveConcurrencyController requestConcurrency, String bucket,
+                              String key, String eTag, long start, long end)
+            throws IOException, InterruptedException {
+        Exception lastFailure = null;
+        for (int attempt = 1; attempt <= MAX_RANGE_ATTEMPTS; attempt++) {
+            GetObjectRequest rangeRequest = pinned(new GetObjectRequest(bucket, key), eTag).withRange(start, end);
+            try {
+                return requestConcurrency.call(end - start + 1, () -> {
+                    try (S3Object rangeObject = getPinnedObject(amazonS3, rangeRequest);
+                         InputStream rangeContent = rangeObject.getObjectContent()) {
+                        byte[] range = new byte[(int) (end - start + 1)];
+                        IOUtils.readFully(rangeContent, range);
+                        return range;
+                    }
+                });
+            } catch (SourceChangedException e) {
+                throw e;
+            } catch (IOException e) {
+                logger.warn("Attempt {} to read bytes {}-{} of s3:{}/{} failed", attempt, start, end, bucket, key, e);
+                lastFailure = e;
+            } catch (AmazonServiceException e) {
+                if (!AdaptiveConcurrencyController.isThrottle(e)) {
+                    throw e;
+                }
+                logger.warn("Attempt {} to read bytes {}-{} of s3:{}/{} was throttled", attempt, start, end, bucket,
+                        key);
+                lastFailure = e;
+                Thread.sleep(THROTTLE_BACKOFF_MILLIS * attempt);
+            }
+        }
+
+        if (lastFailure instanceof IOException) {
+            throw (IOException) lastFailure;
+        }
+        throw (AmazonServiceException) lastFailure;
+    }
+
+    private class RangeInputStream extends InputStream {
+        private final AmazonS3 amazonS3;
+        private final AdaptiveConcurrencyController requestConcurrency;
+        private final String bucket;
+        private final String key;
+        private final long contentLength;
+        private final String eTag;
+        private final Deque<Future<byte[]>> rangesInFlight = new ArrayDeque<>();
+
+        private long nextRangeStart;
+        private byte[] currentRange = new byte[0];
+        private int currentPosition;
+        private boolean closed;
+
+        RangeInputStream(AmazonS3 amazonS3, String bucket, String key, long contentLength, String eTag,
+                         long startOffset) {
+            this.amazonS3 = amazonS3;
+            this.requestConcurrency = S3ClientPool.concurrencyFor(amazonS3);
+            this.bucket = bucket;
+            this.key = key;
+            this.contentLength = contentLength;
+            this.eTag = eTag;
+            this.nextRangeStart = startOffset;
+            scheduleRanges();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureCurrentRange()) {
+                return -1;
+            }
+            return currentRange[currentPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureCurrentRange()) {
+                return -1;
+            }
+
+            int count = Math.min(len, currentRange.length - currentPosition);
+            System.arraycopy(currentRange, currentPosition, b, off, count);
+            currentPosition += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            for (Future<byte[]> range : rangesInFlight) {
+                range.cancel(true);
+            }
+            rangesInFlight.clear();
+        }
+
+        private boolean ensureCurrentRange() throws IOException {
+            if (closed) {
+                throw new IOException("Range stream for s3:" + bucket + "/" + key + " is closed");
+            }
+            if (currentPosition < currentRange.length) {
+                return true;
+            }
+
+            Future<byte[]> nextRange = rangesInFlight.poll();
+            if (nextRange == null) {
+                return false;
+            }
+
+            try {
+                currentRange = nextRange.get();
+                currentPosition = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IOException("Interrupted while downloading s3:" + bucket + "/" + key, e);
+            } catch (ExecutionException e) {
+                close();
+                throw new IOException("Range download of s3:" + bucket + "/" + key + " failed", e.getCause());
+            }
+
+            scheduleRanges();
+            return true;
+        }
+
+        private void scheduleRanges() {
+            while (rangesInFlight.size() < parallelism && nextRangeStart < contentLength) {
+                final long start = nextRangeStart;
+                final long end = Math.min(start + rangeSize, contentLength) - 1;
+                rangesInFlight.add(executor.submit(() -> fetchRange(amazonS3, requestConcurrency, bucket, key,
+                        eTag, start, end)));
+                nextRangeStart = end + 1;
+            }
+        }
+    }
+
+    /**
+     * Thrown when the source object was overwritten after its ETag was taken. Retrying the range cannot help.
+     */
+    public static class SourceChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public SourceChangedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays {@link Cat3Cat1TransferUtils#doActionForTags} for every existing object under a prefix, for onboarding
+ * a bucket whose bundles predate the event notifications.
+ *
+ * The prefix is listed with a "/" delimiter and every common prefix becomes its own listing task, so deep trees
+ * are listed in parallel. Listing and transfer tasks share one work-stealing pool: a listing task forks one
+ * transfer task per key and lists the next page while they run. A page is checkpointed once all of its keys and
+ * sub-prefixes are done, so a restarted run resumes each prefix after its last completed page and skips finished
+ * prefixes entirely. Keys of a page that was interrupted are transferred again. Once a page has a failed key the
+ * prefix is no longer checkpointed, so the next run retries from that page.
+ */
+public class PrefixBackfillEngine {
+    private static final Logger logger = LoggerFactory.getLogger(PrefixBackfillEngine.class);
+
+    public static final int DEFAULT_BACKFILL_CONCURRENCY = 16;
+    private static final String DELIMITER = "/";
+    private static final int PAGE_SIZE = 1000;
+
+    private final AmazonS3 listingClient;
+    private final Cat3Cat1TransferUtils transferUtils;
+    private final BackfillCheckpointStore checkpointStore;
+    private final int concurrency;
+
+    public PrefixBackfillEngine(AmazonS3 listingClient, Cat3Cat1TransferUtils transferUtils,
+                                BackfillCheckpointStore checkpointStore, int concurrency) {
+        this.listingClient = listingClient;
+        this.transferUtils = transferUtils;
+        this.checkpointStore = checkpointStore;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Builds an engine on the pooled source client with its concurrency read from BACKFILL_CONCURRENCY.
+     */
+    public static PrefixBackfillEngine fromEnvironment(BackfillCheckpointStore checkpointStore) {
+        return new PrefixBackfillEngine(S3ClientPool.getSourceClient(), new Cat3Cat1TransferUtils(), checkpointStore,
+                MultipartUploadEngine.intFromEnvironment("BACKFILL_CONCURRENCY", DEFAULT_BACKFILL_CONCURRENCY));
+    }
+
+    /**
+     * Processes every object under {@code prefix} in {@code bucket} and returns the totals for this run.
+     */
+    public BackfillSummary run(String bucket, String prefix) {
+        long start = System.currentTimeMillis();
+        BackfillSummary summary = new BackfillSummary();
+        ForkJoinPool pool = new ForkJoinPool(concurrency);
+        try {
+            pool.invoke(new ListPrefixTask(bucket, prefix, summary));
+        } finally {
+            pool.shutdown();
+        }
+
+        logger.info("Backfill of s3:{}/{} finished in {} ms: {}", bucket, prefix, System.currentTimeMillis() - start,
+                summary);
+        return summary;
+    }
+
+    /**
+     * Lists one prefix and processes everything under it. Returns true when every key under it succeeded.
+     */
+    private final class ListPrefixTask extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final String bucket;
+        private final String prefix;
+        private final BackfillSummary summary;
+
+        ListPrefixTask(String bucket, String prefix, BackfillSummary summary) {
+            this.bucket = bucket;
+            this.prefix = prefix;
+            this.summary = summary;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (checkpointStore.isCompleted(bucket, prefix)) {
+                logger.info("Skipping completed prefix s3:{}/{}", bucket, prefix);
+                return true;
+            }
+
+            ListObjectsV2Request request = new ListObjectsV2Request()
+                    .withBucketName(bucket)
+                    .withPrefix(prefix)
+                    .withDelimiter(DELIMITER)
+                    .withMaxKeys(PAGE_SIZE)
+                    .withStartAfter(checkpointStore.getStartAfter(bucket, prefix));
+            ListObjectsV2Result page = listingClient.listObjectsV2(request);
+            boolean allSucceeded = true;
+            while (page != null) {
+                List<ForkJoinTask<Boolean>> pageTasks = new ArrayList<>();
+                String lastEntry = null;
+                for (S3ObjectSummary object : page.getObjectSummaries()) {
+                    pageTasks.add(new TransferKeyTask(bucket, object.getKey(), summary).fork());
+                    lastEntry = later(lastEntry, object.getKey());
+                }
+                for (String commonPrefix : page.getCommonPrefixes()) {
+                    pageTasks.add(new ListPrefixTask(bucket, commonPrefix, summary).fork());
+                    lastEntry = later(lastEntry, commonPrefix);
+                }
+
+                ListObjectsV2Result nextPage = null;
+                if (page.isTruncated()) {
+                    nextPage = listingClient.listObjectsV2(request.withStartAfter(null)
+                            .withContinuationToken(page.getNextContinuationToken()));
+                }
+
+                for (ForkJoinTask<Boolean> pageTask : pageTasks) {
+                    allSucceeded &= pageTask.join();
+                }
+                if (allSucceeded && lastEntry != null) {
+                    checkpointStore.saveStartAfter(bucket, prefix, lastEntry);
+                }
+                page = nextPage;
+            }
+
+            if (allSucceeded) {
+                checkpointStore.markCompleted(bucket, prefix);
+            } else {
+                logger.warn("Prefix s3:{}/{} had failures; it will be resumed from its last clean page", bucket,
+                        prefix);
+            }
+            return allSucceeded;
+        }
+
+        private String later(String current, String candidate) {
+            return current == null || candidate.compareTo(current) > 0 ? candidate : current;
+        }
+    }
+
+    private final class TransferKeyTask extends RecursiveTask<Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        private final String bucket;
+        private final String key;
+        private final BackfillSummary summary;
+
+        TransferKeyTask(String bucket, String key, BackfillSummary summary) {
+            this.bucket = bucket;
+            this.key = key;
+            this.summary = summary;
+        }
+
+        @Override
+        protected Boolean compute() {
+            summary.listed.incrementAndGet();
+            try {
+                BundleResult result = BundleResult.completed(new BundleRecord(bucket, key),
+                        transferUtils.doActionForTags(bucket, key));
+                if (!result.isSuccessful()) {
+                    summary.failed.incrementAndGet();
+                    logger.error("Backfill of {} failed: {}", result.getRecord(), result.getOutcome());
+                    return false;
+                }
+
+                if (Cat3Cat1TransferUtils.NO_ACTION_TAKEN.equals(result.getOutcome())) {
+                    summary.skipped.incrementAndGet();
+                } else {
+                    summary.transferred.incrementAndGet();
+                }
+                return true;
+            } catch (Exception e) {
+                summary.failed.incrementAndGet();
+                logger.error("Exception occurred during backfill of s3:{}/{}", bucket, key, e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Object counts of one backfill run. Keys under prefixes completed by an earlier run are not counted.
+     */
+    public static final class BackfillSummary {
+        private final AtomicLong listed = new AtomicLong();
+        private final AtomicLong transferred = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        public long getListed() {
+            return listed.get();
+        }
+
+        public long getTransferred() {
+            return transferred.get();
+        }
+
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("listed=%d, transferred=%d, skipped=%d, failed=%d", getListed(), getTransferred(),
+                    getSkipped(), getFailed());
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ObjectTagging;
+import com.amazonaws.services.s3.model.PartETag;
+import com.capitalone.gallery.utils.MultipartUploadOutputStream.UploadProgressListener;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Multipart transfers that survive the invocation being cut off by its timeout.
+ *
+ * A pass-through copy records its upload id and completed parts in a {@link TransferCheckpointStore} as it goes.
+ * When the same source version is transferred to the same target again, the copy continues the existing
+ * multipart upload: it reads the source from the end of the last contiguous completed part and numbers its parts
+ * after it. A PGP-encrypted transfer cannot resume, since the encryptor's cipher, compression and integrity state
+ * cannot be saved, so it only records its upload id and the next attempt aborts the orphaned upload and starts
+ * over.
+ *
+ * Resuming needs a durable checkpoint store, since a retry or continuation may land on another container. Without
+ * one a copy is a plain upload that is aborted on any failure, including running out of time, so it never leaves
+ * an open multipart upload behind.
+ */
+public class ResumableTransfer {
+    private static final Logger logger = LoggerFactory.getLogger(ResumableTransfer.class);
+
+    private final MultipartUploadEngine uploadEngine;
+    private final ParallelRangeDownloader rangeDownloader;
+    private final TransferCheckpointStore checkpointStore;
+
+    public ResumableTransfer(MultipartUploadEngine uploadEngine, ParallelRangeDownloader rangeDownloader,
+                             TransferCheckpointStore checkpointStore) {
+        this.uploadEngine = uploadEngine;
+        this.rangeDownloader = rangeDownloader;
+        this.checkpointStore = checkpointStore;
+    }
+
+    /**
+     * Keeps checkpoints in the TRANSFER_CHECKPOINT_DIR directory when it is set, e.g. an EFS mount. Otherwise
+     * checkpoints are only kept in memory and transfers are not resumable.
+     */
+    public static ResumableTransfer fromEnvironment(MultipartUploadEngine uploadEngine,
+                                                    ParallelRangeDownloader rangeDownloader) {
+        String checkpointDirectory = System.getenv("TRANSFER_CHECKPOINT_DIR");
+        TransferCheckpointStore checkpointStore;
+        if (checkpointDirectory == null || checkpointDirectory.trim().isEmpty()) {
+            checkpointStore = new InMemoryTransferCheckpointStore();
+            logger.info("TRANSFER_CHECKPOINT_DIR is not set; transfers will not be resumed or handed off");
+        } else {
+            try {
+                checkpointStore = new FileTransferCheckpointStore(Paths.get(checkpointDirectory.trim()));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open transfer checkpoint directory " + checkpointDirectory,
+                        e);
+            }
+            logger.info("Transfer checkpoints are kept in {}", checkpointDirectory);
+        }
+        return new ResumableTransfer(uploadEngine, rangeDownloader, checkpointStore);
+    }
+
+    /**
+     * Returns true when {@link #copy} checkpoints its progress, so a copy that runs out of time can be continued
+     * by a later invocation instead of starting over.
+     */
+    public boolean isResumable() {
+        return checkpointStore.isDurable();
+    }
+
+    /**
+     * Copies the source object byte for byte to the target, continuing an earlier attempt at the same transfer
+     * when one left a usable checkpoint. Returns the number of source bytes read, which is less than the object
+     * length when the copy continued an earlier attempt.
+     *
+     * When the copy is projected to miss the {@code budget} deadline it waits for the parts in flight, so the
+     * checkpoint covers them, and throws {@link InvocationTimeBudget.OutOfTimeException}; calling this again for
+     * the same transfer continues from there. When the copy is not {@link #isResumable() resumable} its upload is
+     * aborted instead and a later call starts over.
+     */
+    public long copy(AmazonS3 sourceClient, String sourceBucket, String sourceKey, ObjectMetadata sourceMetadata,
+                     AmazonS3 targetClient, String targetBucket, String targetKey, ObjectMetadata uploadMetadata,
+                     ObjectTagging tagging, InvocationTimeBudget budget) throws IOException {
+        long contentLength = sourceMetadata.getContentLength();
+        int partSize = uploadEngine.partSizeFor(contentLength);
+        if (contentLength <= partSize || !isResumable()) {
+            try (InputStream content = budget.watch(rangeDownloader.openStream(sourceClient, sourceBucket, sourceKey,
+                    contentLength, sourceMetadata.getETag()), contentLength)) {
+                return uploadEngine.upload(targetClient, targetBucket, targetKey, content, contentLength,
+                        uploadMetadata, tagging);
+            } catch (AmazonClientException e) {
+                // a single putObject wraps the exception thrown by the watched stream
+                InvocationTimeBudget.OutOfTimeException outOfTime = InvocationTimeBudget.outOfTimeCause(e);
+                if (outOfTime != null) {
+                    throw outOfTime;
+                }
+                throw e;
+            }
+        }
+
+        TransferCheckpoint checkpoint = resumableCheckpoint(targetClient, targetBucket, targetKey,
+                sourceMetadata.getETag(), contentLength, partSize);
+        if (checkpoint == null) {
+            checkpoint = new TransferCheckpoint(sourceBucket, sourceKey, sourceMetadata.getETag(), contentLength,
+                    targetBucket, targetKey, false, partSize, null, Collections.<PartETag>emptyList(), 0);
+        } else {
+            logger.info("Resuming upload {} to s3:{}/{} after {} parts ({} of {} bytes)", checkpoint.getUploadId(),
+                    targetBucket, targetKey, checkpoint.getPartETags().size(), checkpoint.getSourceOffset(),
+                    contentLength);
+        }
+
+        MultipartUploadOutputStream uploadStream = uploadEngine.openResumableUploadStream(targetClient, targetBucket,
+                targetKey, uploadMetadata, tagging, partSize, checkpoint.getUploadId(), checkpoint.getPartETags(),
+                new CheckpointingListener(checkpoint));
+        long sourceOffset = checkpoint.getSourceOffset();
+        try (InputStream content = budget.watch(rangeDownloader.openStream(sourceClient, sourceBucket, sourceKey,
+                contentLength, sourceMetadata.getETag(), sourceOffset), contentLength - sourceOffset)) {
+            IOUtils.copyLarge(content, uploadStream);
+            uploadStream.close();
+        } catch (InvocationTimeBudget.OutOfTimeException e) {
+            uploadStream.suspend();
+            logger.info("Stopped upload to s3:{}/{} for a later invocation to continue: {}", targetBucket, targetKey,
+                    e.getMessage());
+            throw e;
+        }
+
+        checkpointStore.delete(targetBucket, targetKey);
+        return contentLength - sourceOffset;
+    }
+
+    /**
+     * Returns true when a {@link #copy} to the target stopped with a checkpoint that a later call can continue
+     * from. A transfer without one, such as an encrypted transfer, starts over when it is attempted again.
+     */
+    public boolean canContinue(String targetBucket, String targetKey) {
+        if (!isResumable()) {
+            return false;
+        }
+        TransferCheckpoint checkpoint = checkpointStore.load(targetBucket, targetKey);
+        return checkpoint != null && checkpoint.getUploadId() != null && !checkpoint.isEncrypted();
+    }
+
+    /**
+     * Opens an upload stream for content that cannot be resumed, such as encryptor output. Any upload left behind
+     * by an earlier attempt at the same target is aborted first. Call {@link #finish} once the stream has been
+     * closed or aborted.
+     */
+    public MultipartUploadOutputStream openRestartableUploadStream(AmazonS3 targetClient, String sourceBucket,
+                                                                   String sourceKey, ObjectMetadata sourceMetadata,
+                                                                   String targetBucket, String targetKey,
+                                                                   ObjectMetadata uploadMetadata,
+                                                                   ObjectTagging tagging) {
+        discardCheckpoint(targetClient, checkpointStore.load(targetBucket, targetKey));
+
+        long contentLength = sourceMetadata.getContentLength();
+        int partSize = uploadEngine.partSizeFor(contentLength);
+        TransferCheckpoint checkpoint = new TransferCheckpoint(sourceBucket, sourceKey, sourceMetadata.getETag(),
+                contentLength, targetBucket, targetKey, true, partSize, null, Collections.<PartETag>emptyList(), 0);
+        return uploadEngine.openResumableUploadStream(targetClient, targetBucket, targetKey, uploadMetadata, tagging,
+                partSize, null, Collections.<PartETag>emptyList(), new UploadIdRecorder(checkpoint));
+    }
+
+    /**
+     * Forgets the checkpoint of a transfer that has finished, successfully or not.
+     */
+    public void finish(String targetBucket, String targetKey) {
+        checkpointStore.delete(targetBucket, targetKey);
+    }
+
+    /**
+     * Returns the stored checkpoint when its upload can be continued for this source version, discarding it
+     * otherwise.
+     */
+    private TransferCheckpoint resumableCheckpoint(AmazonS3 targetClient, String targetBucket, String targetKey,
+                                                   String sourceETag, long contentLength, int partSize) {
+        TransferCheckpoint checkpoint = checkpointStore.load(targetBucket, targetKey);
+        if (checkpoint == null) {
+            return null;
+        }
+        if (checkpoint.getUploadId() == null
+                || !checkpoint.isResumableFor(sourceETag, contentLength, false, partSize)) {
+            discardCheckpoint(targetClient, checkpoint);
+            return null;
+        }
+
+        try {
+            targetClient.listParts(new ListPartsRequest(targetBucket, targetKey, checkpoint.getUploadId())
+                    .withMaxParts(1));
+            return checkpoint;
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+            logger.info("Upload {} to s3:{}/{} no longer exists; starting over", checkpoint.getUploadId(),
+                    targetBucket, targetKey);
+            checkpointStore.delete(targetBucket, targetKey);
+            return null;
+        }
+    }
+
+    private void discardCheckpoint(AmazonS3 targetClient, TransferCheckpoint checkpoint) {
+        if (checkpoint == null) {
+            return;
+        }
+
+        if (checkpoint.getUploadId() != null) {
+            try {
+                targetClient.abortMultipartUpload(new AbortMultipartUploadRequest(checkpoint.getTargetBucket(),
+                        checkpoint.getTargetKey(), checkpoint.getUploadId()));
+                logger.info("Aborted upload {} left by an earlier attempt at s3:{}/{}", checkpoint.getUploadId(),
+                        checkpoint.getTargetBucket(), checkpoint.getTargetKey());
+            } catch (AmazonServiceException e) {
+                logger.warn("Unable to abort upload {} to s3:{}/{}", checkpoint.getUploadId(),
+                        checkpoint.getTargetBucket(), checkpoint.getTargetKey(), e);
+            }
+        }
+        checkpointStore.delete(checkpoint.getTargetBucket(), checkpoint.getTargetKey());
+    }
+
+    /**
+     * Saves the checkpoint as parts complete. Parts finish out of order, so only the contiguous run from part 1
+     * is recorded; the source offset after it is where a later attempt resumes reading.
+     */
+    private final class CheckpointingListener implements UploadProgressListener {
+        private final TreeMap<Integer, PartETag> outOfOrderParts = new TreeMap<>();
+        private final List<PartETag> contiguousParts;
+        private TransferCheckpoint checkpoint;
+
+        CheckpointingListener(TransferCheckpoint checkpoint) {
+            this.checkpoint = checkpoint;
+            this.contiguousParts = new ArrayList<>(checkpoint.getPartETags());
+        }
+
+        @Override
+        public synchronized void uploadStarted(String uploadId) {
+            checkpoint = checkpoint.withUploadId(uploadId);
+            save();
+        }
+
+        @Override
+        public synchronized void partCompleted(PartETag partETag) {
+            outOfOrderParts.put(partETag.getPartNumber(), partETag);
+            boolean advanced = false;
+            while (!outOfOrderParts.isEmpty() && outOfOrderParts.firstKey() == contiguousParts.size() + 1) {
+                contiguousParts.add(outOfOrderParts.pollFirstEntry().getValue());
+                advanced = true;
+            }
+            if (advanced) {
+                checkpoint = checkpoint.withParts(contiguousParts,
+                        (long) contiguousParts.size() * checkpoint.getPartSize());
+                save();
+            }
+        }
+
+        private void save() {
+            try {
+                checkpointStore.save(checkpoint);
+            } catch (RuntimeException e) {
+                logger.warn("Unable to save checkpoint for s3:{}/{}", checkpoint.getTargetBucket(),
+                        checkpoint.getTargetKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Records only the upload id of a transfer that cannot resume, so the next attempt can abort it.
+     */
+    private final class UploadIdRecorder implements UploadProgressListener {
+        private final TransferCheckpoint checkpoint;
+
+        UploadIdRecorder(TransferCheckpoint checkpoint) {
+            this.checkpoint = checkpoint;
+        }
+
+        @Override
+        public void uploadStarted(String uploadId) {
+            try {
+                checkpointStore.save(checkpoint.withUploadId(uploadId));
+            } catch (RuntimeException e) {
+                logger.warn("Unable to save checkpoint for s3:{}/{}", checkpoint.getTargetBucket(),
+                        checkpoint.getTargetKey(), e);
+            }
+        }
+
+        @Override
+        public void partCompleted(PartETag partETag) {
+        }
+    }
+}
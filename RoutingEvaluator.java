@@ -0,0 +1,63 @@
+package com.capitalone.gallery.utils;
+
+import com.capitalone.gallery.utils.Cat3Cat1TransferUtils.TagBasedAction;
+
+import java.util.Optional;
+
+/**
+ * Decides what to do with a bundle in two stages. The first stage only looks at the object key and the
+ * Lambda's configuration, which settles every case except a CAT2 copy, so ignored files and keys that are
+ * irrelevant to this Lambda are dropped before any S3 call is made. The second stage adds the bundle's tags.
+ * A fan-out Lambda takes CAT3 bundles only, like a Voltron copy, and then applies the CAT2 tag rule.
+ */
+public class RoutingEvaluator {
+    private static final String CAT3_BUNDLE_PATH = "CAT3_BUNDLE/";
+
+    private final TransferConfig config;
+
+    public RoutingEvaluator(TransferConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Stage one: decides from the key and config alone. Returns an empty Optional when the decision depends
+     * on the bundle's tags.
+     */
+    public Optional<TagBasedAction> decideFromKey(String s3ObjectKey) {
+        return decideFromKey(s3ObjectKey, config.getTransferIgnorePatterns().matches(s3ObjectKey));
+    }
+
+    /**
+     * Both stages, for a bundle whose tags have been fetched.
+     */
+    public TagBasedAction decide(BundleSnapshot bundle) {
+        Optional<TagBasedAction> keyDecision = decideFromKey(bundle.getKey(), bundle.isIgnoredForTransfer());
+        if (keyDecision.isPresent()) {
+            return keyDecision.get();
+        }
+
+        boolean voltronProcessingTagPresent = TaggingUtils.tagExistsWithValue(bundle.getTags(), "VOLTRON-PROCESSING",
+                "SUCCESS");
+        if (voltronProcessingTagPresent) {
+            return TagBasedAction.NONE;
+        }
+        return config.getTagBasedAction() == TagBasedAction.FAN_OUT ? TagBasedAction.FAN_OUT : TagBasedAction.CAT2_COPY;
+    }
+
+    private Optional<TagBasedAction> decideFromKey(String s3ObjectKey, boolean isIgnoredFile) {
+        TagBasedAction actionForLambda = config.getTagBasedAction();
+        if (isIgnoredFile || actionForLambda == TagBasedAction.NONE) {
+            return Optional.of(TagBasedAction.NONE);
+        }
+
+        if (actionForLambda == TagBasedAction.VOLTRON_COPY) {
+            boolean isCat3Bundle = s3ObjectKey.contains(CAT3_BUNDLE_PATH);
+            return Optional.of(isCat3Bundle ? TagBasedAction.VOLTRON_COPY : TagBasedAction.NONE);
+        }
+        if (actionForLambda == TagBasedAction.FAN_OUT && !s3ObjectKey.contains(CAT3_BUNDLE_PATH)) {
+            return Optional.of(TagBasedAction.NONE);
+        }
+
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,202 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.auth.STSAssumeRoleSessionCredentialsProvider;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived S3 clients shared by every invocation in the container.
+ *
+ * Each pooled client is built once per container from the matching {@link AwsClientUtils} client: a new builder
+ * takes that client's region, credentials and client configuration, plus explicit connection management (a bounded
+ * pool size, TCP keep-alive, a connection TTL and the idle connection reaper). Clients built elsewhere may be
+ * immutable, so they are only read, never changed. When CAT_2_ROLE_ARN is set the CAT2 client assumes that role
+ * itself, with the source client's region and configuration, and its session credentials are refreshed on a
+ * background thread before they expire, so the request path never waits on STS.
+ *
+ * Each client has its own {@link AdaptiveConcurrencyController} for the part uploads and range downloads made
+ * through it, so throttling on the CAT2 bucket does not slow the source side down and vice versa. Every pooled
+ * client is built with a request handler that reports each throttled attempt to its controller.
+ */
+public final class S3ClientPool {
+    private static final Logger logger = LoggerFactory.getLogger(S3ClientPool.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+    public static final int DEFAULT_CONNECTION_TTL_MILLIS = 60_000;
+    public static final int DEFAULT_CONNECTION_MAX_IDLE_MILLIS = 30_000;
+    private static final String CAT2_SESSION_NAME = "cat3-cat2-transfer";
+    private static final long CREDENTIAL_REFRESH_MINUTES = 10;
+    private static final int MIN_REQUEST_CONCURRENCY = 2;
+
+    private static final AdaptiveConcurrencyController sourceConcurrency = requestConcurrencyController("source");
+    private static final AdaptiveConcurrencyController cat2Concurrency = requestConcurrencyController("cat2");
+
+    private static AmazonS3 sourceClient;
+    private static AmazonS3 cat2Client;
+    private static STSAssumeRoleSessionCredentialsProvider cat2Credentials;
+
+    private S3ClientPool() {
+    }
+
+    public static synchronized AmazonS3 getSourceClient() {
+        if (sourceClient == null) {
+            AmazonS3 base = AwsClientUtils.getAmazonS3Client();
+            sourceClient = builderFrom(base, credentialsOf(base), sourceConcurrency).build();
+            logger.info("Built pooled source S3 client");
+        }
+        return sourceClient;
+    }
+
+    public static synchronized AmazonS3 getCat2Client() {
+        if (cat2Client == null) {
+            String cat2RoleArn = System.getenv("CAT_2_ROLE_ARN");
+            if (cat2RoleArn == null || cat2RoleArn.trim().isEmpty()) {
+                AmazonS3 base = AwsClientUtils.getCat2AmazonS3Client();
+                cat2Client = builderFrom(base, credentialsOf(base), cat2Concurrency).build();
+            } else {
+                ScheduledExecutorService credentialRefreshExecutor = Executors.newSingleThreadScheduledExecutor(
+                        MultipartUploadEngine.daemonThreadFactory("cat2-credential-refresh"));
+                cat2Credentials = new STSAssumeRoleSessionCredentialsProvider.Builder(cat2RoleArn.trim(),
+                        CAT2_SESSION_NAME)
+                        .withAsyncRefreshExecutor(credentialRefreshExecutor)
+                        .build();
+                // the default session lasts 15 minutes, so renew well ahead of expiry
+                credentialRefreshExecutor.scheduleWithFixedDelay(S3ClientPool::refreshCredentials,
+                        CREDENTIAL_REFRESH_MINUTES, CREDENTIAL_REFRESH_MINUTES, TimeUnit.MINUTES);
+                credentialRefreshExecutor.execute(S3ClientPool::refreshCredentials);
+                cat2Client = builderFrom(AwsClientUtils.getAmazonS3Client(), cat2Credentials, cat2Concurrency)
+                        .build();
+            }
+            logger.info("Built pooled CAT2 S3 client");
+        }
+        return cat2Client;
+    }
+
+    /**
+     * Returns the concurrency controller for requests made through {@code amazonS3}: the CAT2 controller for the
+     * CAT2 client and the source controller for any other client.
+     */
+    public static synchronized AdaptiveConcurrencyController concurrencyFor(AmazonS3 amazonS3) {
+        return amazonS3 != null && amazonS3 == cat2Client ? cat2Concurrency : sourceConcurrency;
+    }
+
+    public static AdaptiveConcurrencyController getSourceConcurrency() {
+        return sourceConcurrency;
+    }
+
+    public static AdaptiveConcurrencyController getCat2Concurrency() {
+        return cat2Concurrency;
+    }
+
+    /**
+     * Forces a fresh assume-role call for the CAT2 client. Runs on the refresh thread every few minutes and
+     * after a snapshot restore, when the cached session credentials may already have expired.
+     */
+    public static void refreshCredentials() {
+        STSAssumeRoleSessionCredentialsProvider credentials;
+        synchronized (S3ClientPool.class) {
+            credentials = cat2Credentials;
+        }
+        if (credentials == null) {
+            return;
+        }
+
+        try {
+            credentials.refresh();
+            logger.info("Refreshed CAT2 session credentials");
+        } catch (RuntimeException e) {
+            logger.warn("Unable to refresh CAT2 session credentials; they will be refreshed on next use", e);
+        }
+    }
+
+    /**
+     * Requests through one client start at a quarter of its connection pool and may grow to the whole pool.
+     */
+    private static AdaptiveConcurrencyController requestConcurrencyController(String clientName) {
+        int maxConnections = MultipartUploadEngine.intFromEnvironment("S3_MAX_CONNECTIONS", DEFAULT_MAX_CONNECTIONS);
+        int minLimit = Math.min(MIN_REQUEST_CONCURRENCY, maxConnections);
+        return new AdaptiveConcurrencyController(clientName + "-requests", Math.max(minLimit, maxConnections / 4),
+                minLimit, maxConnections);
+    }
+
+    /**
+     * A builder for a pooled client with the region and client configuration of {@code base}, the pool's
+     * connection settings, {@code credentials}, and a request handler reporting throttles to {@code controller}.
+     */
+    private static AmazonS3ClientBuilder builderFrom(AmazonS3 base, AWSCredentialsProvider credentials,
+                                                     AdaptiveConcurrencyController controller) {
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                .withClientConfiguration(clientConfiguration(base))
+                .withCredentials(credentials)
+                .withRequestHandlers(controller.throttleListener());
+        String region = regionOf(base);
+        if (region != null) {
+            builder.withRegion(region);
+        }
+        return builder;
+    }
+
+    /**
+     * The credentials provider of a client built elsewhere. The SDK does not expose it, so it is read from the
+     * client's field; when that fails the default provider chain is used, as a client built without explicit
+     * credentials would.
+     */
+    private static AWSCredentialsProvider credentialsOf(AmazonS3 base) {
+        if (base instanceof AmazonS3Client) {
+            try {
+                Field credentialsField = AmazonS3Client.class.getDeclaredField("awsCredentialsProvider");
+                credentialsField.setAccessible(true);
+                AWSCredentialsProvider credentials = (AWSCredentialsProvider) credentialsField.get(base);
+                if (credentials != null) {
+                    return credentials;
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                logger.warn("Unable to read the credentials of {}", base, e);
+            }
+        }
+        logger.warn("Using the default credentials provider chain for the pooled client built from {}", base);
+        return DefaultAWSCredentialsProviderChain.getInstance();
+    }
+
+    private static String regionOf(AmazonS3 amazonS3) {
+        if (amazonS3 == null) {
+            return null;
+        }
+        try {
+            return amazonS3.getRegionName();
+        } catch (IllegalStateException e) {
+            logger.warn("Unable to read the region of {}; using the default region", amazonS3, e);
+            return null;
+        }
+    }
+
+    /**
+     * The client configuration of {@code base} when it exposes one, with this pool's connection settings.
+     */
+    private static ClientConfiguration clientConfiguration(AmazonS3 base) {
+        ClientConfiguration configuration = base instanceof AmazonWebServiceClient
+                ? new ClientConfiguration(((AmazonWebServiceClient) base).getClientConfiguration())
+                : new ClientConfiguration();
+        return configuration
+                .withMaxConnections(MultipartUploadEngine.intFromEnvironment("S3_MAX_CONNECTIONS",
+                        DEFAULT_MAX_CONNECTIONS))
+                .withTcpKeepAlive(true)
+                .withConnectionTTL(MultipartUploadEngine.intFromEnvironment("S3_CONNECTION_TTL_MILLIS",
+                        DEFAULT_CONNECTION_TTL_MILLIS))
+                .withConnectionMaxIdleMillis(MultipartUploadEngine.intFromEnvironment("S3_CONNECTION_MAX_IDLE_MILLIS",
+                        DEFAULT_CONNECTION_MAX_IDLE_MILLIS))
+                .withReaper(true);
+    }
+}
@@ -0,0 +1,229 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ObjectTagging;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Copies objects inside S3 without moving any bytes through the Lambda. Objects up to 5 GB use a single
+ * CopyObject; larger objects use UploadPartCopy with several parts copied in parallel. Tags are written
+ * onto the new object in both cases, and so is the source ETag, as {@link DestinationDedup#SOURCE_ETAG_METADATA},
+ * since the copy's own ETag differs from the source's whenever either was written in parts.
+ *
+ * Every request is made on the condition that the source still has the ETag in the source metadata, so a source
+ * overwritten during a copy fails it, see {@link #isSourceChanged}, instead of producing a mix of both versions.
+ */
+public class ServerSideCopier {
+    private static final Logger logger = LoggerFactory.getLogger(ServerSideCopier.class);
+
+    public static final long MAX_SINGLE_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+    public static final int DEFAULT_COPY_PART_SIZE_MB = 512;
+    public static final int DEFAULT_COPY_CONCURRENCY = 8;
+    private static final int MAX_PARTS = 10000;
+
+    private final long partSize;
+    private final int parallelism;
+    private final ExecutorService executor;
+
+    public ServerSideCopier(long partSize, int parallelism) {
+        if (partSize < MultipartUploadOutputStream.MIN_PART_SIZE || parallelism < 1) {
+            throw new IllegalArgumentException("Copy part size must be at least "
+                    + MultipartUploadOutputStream.MIN_PART_SIZE + " bytes and parallelism must be positive");
+        }
+        this.partSize = partSize;
+        this.parallelism = parallelism;
+        this.executor = Executors.newCachedThreadPool(MultipartUploadEngine.daemonThreadFactory("s3-part-copy"));
+    }
+
+    /**
+     * Builds a copier from the COPY_PART_SIZE_MB and COPY_CONCURRENCY environment variables, falling back
+     * to the defaults when they are not set.
+     */
+    public static ServerSideCopier fromEnvironment() {
+        int partSizeMb = MultipartUploadEngine.intFromEnvironment("COPY_PART_SIZE_MB", DEFAULT_COPY_PART_SIZE_MB);
+        int parallelism = MultipartUploadEngine.intFromEnvironment("COPY_CONCURRENCY", DEFAULT_COPY_CONCURRENCY);
+
+        return new ServerSideCopier(partSizeMb * 1024L * 1024L, parallelism);
+    }
+
+    /**
+     * Returns true when S3 refused the copy itself, e.g. because the credentials cannot read the source
+     * or the request is not supported between the two buckets. Those are the cases where streaming the
+     * bundle through the Lambda can still succeed.
+     */
+    public static boolean isCopyRejected(AmazonServiceException e) {
+        return e.getStatusCode() == 403
+                || e.getStatusCode() == 501
+                || "InvalidRequest".equals(e.getErrorCode())
+                || "NotImplemented".equals(e.getErrorCode());
+    }
+
+    /**
+     * Returns true when the copy failed because the source no longer has the ETag it was copied for. The target
+     * holds nothing of the new version then, and the source must not be treated as transferred.
+     */
+    public static boolean isSourceChanged(AmazonServiceException e) {
+        return e.getStatusCode() == 412;
+    }
+
+    /**
+     * Copies the source object to the target location, replacing its tags with {@code tags}. The source
+     * metadata is used for its length and ETag, and its content headers and user metadata are carried across.
+     * Fails with an exception that {@link #isSourceChanged} accepts when the source is overwritten meanwhile.
+     */
+    public void copy(AmazonS3 amazonS3, String sourceBucket, String sourceKey, String targetBucket, String targetKey,
+                     ObjectMetadata sourceMetadata, List<Tag> tags) {
+        long contentLength = sourceMetadata.getContentLength();
+        if (contentLength <= MAX_SINGLE_COPY_SIZE) {
+            CopyObjectRequest copyObjectRequest = new CopyObjectRequest(sourceBucket, sourceKey, targetBucket, targetKey)
+                    .withNewObjectMetadata(targetMetadataFor(sourceMetadata))
+                    .withNewObjectTagging(new ObjectTagging(tags));
+            if (sourceMetadata.getETag() != null) {
+                copyObjectRequest.withMatchingETagConstraint(sourceMetadata.getETag());
+            }
+            // the SDK returns null instead of throwing when the ETag constraint is not met
+            if (amazonS3.copyObject(copyObjectRequest) == null) {
+                throw sourceChanged(sourceBucket, sourceKey, sourceMetadata.getETag());
+            }
+        } else {
+            multipartCopy(amazonS3, sourceBucket, sourceKey, targetBucket, targetKey, sourceMetadata, tags);
+        }
+
+        logger.info("Server-side copied {} bytes from s3:{}/{} to s3:{}/{}", contentLength, sourceBucket, sourceKey,
+                targetBucket, targetKey);
+    }
+
+    private void multipartCopy(AmazonS3 amazonS3, String sourceBucket, String sourceKey, String targetBucket,
+                               String targetKey, ObjectMetadata sourceMetadata, List<Tag> tags) {
+        long contentLength = sourceMetadata.getContentLength();
+        long copyPartSize = Math.max(partSize, (contentLength + MAX_PARTS - 1) / MAX_PARTS);
+
+        InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(targetBucket, targetKey,
+                targetMetadataFor(sourceMetadata)).withTagging(new ObjectTagging(tags));
+        String uploadId = amazonS3.initiateMultipartUpload(initiateRequest).getUploadId();
+        logger.info("Started multipart copy {} of s3:{}/{} in parts of {} bytes", uploadId, sourceBucket, sourceKey,
+                copyPartSize);
+
+        Semaphore partsInFlight = new Semaphore(parallelism);
+        List<Future<PartETag>> pendingParts = new ArrayList<>();
+        try {
+            int partNumber = 1;
+            for (long firstByte = 0; firstByte < contentLength; firstByte += copyPartSize, partNumber++) {
+                CopyPartRequest copyPartRequest = new CopyPartRequest()
+                        .withSourceBucketName(sourceBucket)
+                        .withSourceKey(sourceKey)
+                        .withDestinationBucketName(targetBucket)
+                        .withDestinationKey(targetKey)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withFirstByte(firstByte)
+                        .withLastByte(Math.min(firstByte + copyPartSize, contentLength) - 1);
+                if (sourceMetadata.getETag() != null) {
+                    copyPartRequest.withMatchingETagConstraint(sourceMetadata.getETag());
+                }
+
+                partsInFlight.acquire();
+                pendingParts.add(executor.submit(() -> {
+                    try {
+                        CopyPartResult copyPartResult = amazonS3.copyPart(copyPartRequest);
+                        if (copyPartResult == null) {
+                            throw sourceChanged(sourceBucket, sourceKey, sourceMetadata.getETag());
+                        }
+                        return copyPartResult.getPartETag();
+                    } finally {
+                        partsInFlight.release();
+                    }
+                }));
+            }
+
+            List<PartETag> partETags = new ArrayList<>(pendingParts.size());
+            for (Future<PartETag> pendingPart : pendingParts) {
+                partETags.add(pendingPart.get());
+            }
+            amazonS3.completeMultipartUpload(new CompleteMultipartUploadRequest(targetBucket, targetKey, uploadId,
+                    partETags));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(amazonS3, targetBucket, targetKey, uploadId, pendingParts);
+            throw new IllegalStateException("Interrupted while copying s3:" + sourceBucket + "/" + sourceKey, e);
+        } catch (ExecutionException e) {
+            abort(amazonS3, targetBucket, targetKey, uploadId, pendingParts);
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Multipart copy of s3:" + sourceBucket + "/" + sourceKey + " failed", e);
+        } catch (RuntimeException e) {
+            abort(amazonS3, targetBucket, targetKey, uploadId, pendingParts);
+            throw e;
+        }
+    }
+
+    /**
+     * Metadata for the copy: the source's content headers and user metadata, plus the source ETag. Setting it
+     * replaces the metadata S3 would otherwise copy from the source.
+     */
+    private static ObjectMetadata targetMetadataFor(ObjectMetadata sourceMetadata) {
+        ObjectMetadata targetMetadata = new ObjectMetadata();
+        if (sourceMetadata.getContentType() != null) {
+            targetMetadata.setContentType(sourceMetadata.getContentType());
+        }
+        if (sourceMetadata.getContentEncoding() != null) {
+            targetMetadata.setContentEncoding(sourceMetadata.getContentEncoding());
+        }
+        if (sourceMetadata.getContentDisposition() != null) {
+            targetMetadata.setContentDisposition(sourceMetadata.getContentDisposition());
+        }
+        if (sourceMetadata.getCacheControl() != null) {
+            targetMetadata.setCacheControl(sourceMetadata.getCacheControl());
+        }
+        Map<String, String> userMetadata = new HashMap<>(sourceMetadata.getUserMetadata());
+        if (sourceMetadata.getETag() != null) {
+            userMetadata.put(DestinationDedup.SOURCE_ETAG_METADATA, sourceMetadata.getETag());
+        }
+        targetMetadata.setUserMetadata(userMetadata);
+        return targetMetadata;
+    }
+
+    private static AmazonS3Exception sourceChanged(String sourceBucket, String sourceKey, String eTag) {
+        AmazonS3Exception e = new AmazonS3Exception("s3:" + sourceBucket + "/" + sourceKey
+                + " changed during the copy; it no longer has ETag " + eTag);
+        e.setStatusCode(412);
+        e.setErrorCode("PreconditionFailed");
+        return e;
+    }
+
+    private void abort(AmazonS3 amazonS3, String bucket, String key, String uploadId,
+                       List<Future<PartETag>> pendingParts) {
+        for (Future<PartETag> pendingPart : pendingParts) {
+            pendingPart.cancel(true);
+        }
+        try {
+            amazonS3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            logger.info("Aborted multipart copy {} to s3:{}/{}", uploadId, bucket, key);
+        } catch (RuntimeException e) {
+            logger.error("Unable to abort multipart copy {} to s3:{}/{}", uploadId, bucket, key, e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.services.s3.model.S3Object;
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * {@link BundleEncryptor} that hands the source to {@link SimplePGPUtil#encryptUsingGPG}, so the key lookup and
+ * algorithm settings are exactly those of the existing CAT2 encryption. SimplePGPUtil returns the encrypted bundle
+ * as one in-memory buffer, which is then written to the target.
+ *
+ * SimplePGPUtil loads and parses its key on every call and takes no pre-parsed key, so the key cache of
+ * {@link StreamingPGPEncryptor} does not apply here; it only takes effect with PGP_STREAMING_ENCRYPTION.
+ */
+public final class SimplePGPUtilEncryptor implements BundleEncryptor {
+    static final SimplePGPUtilEncryptor INSTANCE = new SimplePGPUtilEncryptor();
+
+    private SimplePGPUtilEncryptor() {
+    }
+
+    @Override
+    public long encrypt(InputStream source, OutputStream target, String fileName) throws Exception {
+        CountingInputStream countingSource = new CountingInputStream(source);
+        try (S3Object sourceObject = new S3Object()) {
+            sourceObject.setKey(fileName);
+            sourceObject.setObjectContent(countingSource);
+            try (ByteArrayOutputStream encrypted = SimplePGPUtil.encryptUsingGPG(sourceObject)) {
+                encrypted.writeTo(target);
+            }
+        }
+        target.close();
+        return countingSource.getByteCount();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -0,0 +1,249 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Orders a batch of bundles by size and drops the ones that cannot finish before the invocation runs out of time.
+ *
+ * Each bundle's transfer time is estimated from its size and a per-bundle throughput that is learned from
+ * completed transfers. The batch is then simulated on the workers: {@link Strategy#SHORTEST_FIRST} starts the
+ * small bundles first so most bundles finish quickly, {@link Strategy#BIN_PACK} starts the largest first on the
+ * least-loaded worker (longest-processing-time packing) so the batch as a whole finishes soonest. A bundle whose
+ * simulated finish falls past the deadline is deferred rather than started and cut off by the timeout.
+ *
+ * A bundle that would not finish even on an idle worker cannot fit in any invocation, so deferring it would only
+ * send it round again. Such bundles are started first, one per idle worker, and left to the invocation time
+ * budget, which hands off the transfer before the timeout.
+ *
+ * Records of unknown size are sized before planning with HEAD requests that all run at once on the threads of a
+ * {@link BundleMetadataPrefetcher}, so sizing a batch takes about one round trip rather than one per record.
+ */
+public class SizeAwareScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(SizeAwareScheduler.class);
+
+    public enum Strategy {
+        SHORTEST_FIRST, BIN_PACK
+    }
+
+    public static final int DEFAULT_THROUGHPUT_MBPS = 40;
+    public static final int DEFAULT_SAFETY_MARGIN_MILLIS = 5_000;
+    private static final long MB = 1024L * 1024L;
+    private static final long PER_BUNDLE_OVERHEAD_MILLIS = 250;
+    private static final long UNKNOWN_SIZE_ESTIMATE = 64 * MB;
+    private static final double THROUGHPUT_SMOOTHING = 0.2;
+
+    private final Strategy strategy;
+    private final AmazonS3 sizeClient;
+    private final BundleMetadataPrefetcher sizePrefetcher;
+    private final long safetyMarginMillis;
+    private volatile double bytesPerMilli;
+
+    /**
+     * @param sizeClient client used to HEAD bundles whose size is unknown, or null to estimate them instead
+     */
+    public SizeAwareScheduler(Strategy strategy, AmazonS3 sizeClient, int initialThroughputMbps,
+                              long safetyMarginMillis) {
+        this(strategy, sizeClient, sizeClient == null ? null
+                : new BundleMetadataPrefetcher(BundleMetadataPrefetcher.DEFAULT_PREFETCH_THREADS),
+                initialThroughputMbps, safetyMarginMillis);
+    }
+
+    /**
+     * @param sizePrefetcher runs the HEAD requests on {@code sizeClient}; required when there is a size client
+     */
+    public SizeAwareScheduler(Strategy strategy, AmazonS3 sizeClient, BundleMetadataPrefetcher sizePrefetcher,
+                              int initialThroughputMbps, long safetyMarginMillis) {
+        if (sizeClient != null && sizePrefetcher == null) {
+            throw new IllegalArgumentException("A size client needs a prefetcher to run its HEAD requests");
+        }
+        this.strategy = strategy;
+        this.sizeClient = sizeClient;
+        this.sizePrefetcher = sizePrefetcher;
+        this.safetyMarginMillis = safetyMarginMillis;
+        this.bytesPerMilli = initialThroughputMbps * MB / 1000.0;
+    }
+
+    /**
+     * Builds a scheduler on the pooled source client. The strategy is read from BATCH_SCHEDULE and falls back to
+     * {@code defaultStrategy}; SCHEDULER_THROUGHPUT_MBPS and SCHEDULER_SAFETY_MARGIN_MILLIS tune the estimates.
+     * Unknown sizes are read on a prefetcher sized by PREFETCH_THREADS.
+     */
+    public static SizeAwareScheduler fromEnvironment(Strategy defaultStrategy) {
+        String configuredStrategy = System.getenv("BATCH_SCHEDULE");
+        Strategy strategy = configuredStrategy == null || configuredStrategy.trim().isEmpty()
+                ? defaultStrategy : Strategy.valueOf(configuredStrategy.trim().toUpperCase());
+        return new SizeAwareScheduler(strategy, S3ClientPool.getSourceClient(),
+                BundleMetadataPrefetcher.fromEnvironment(),
+                MultipartUploadEngine.intFromEnvironment("SCHEDULER_THROUGHPUT_MBPS", DEFAULT_THROUGHPUT_MBPS),
+                MultipartUploadEngine.intFromEnvironment("SCHEDULER_SAFETY_MARGIN_MILLIS",
+                        DEFAULT_SAFETY_MARGIN_MILLIS));
+    }
+
+    /**
+     * Plans {@code records} on {@code workers} parallel workers with {@code remainingMillis} left in the
+     * invocation. Records of unknown size are sized with concurrent HEAD requests first.
+     */
+    public SchedulePlan plan(List<BundleRecord> records, int workers, long remainingMillis) {
+        List<BundleRecord> sizedRecords = withKnownSizes(records);
+        List<Integer> order = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            order.add(i);
+        }
+
+        Comparator<Integer> bySize = Comparator.comparingLong(i -> sizeForEstimate(sizedRecords.get(i)));
+        order.sort(strategy == Strategy.SHORTEST_FIRST ? bySize : bySize.reversed());
+
+        long deadline = remainingMillis == Long.MAX_VALUE ? Long.MAX_VALUE : remainingMillis - safetyMarginMillis;
+        List<Integer> oversizedFirst = new ArrayList<>(order.size());
+        for (Integer index : order) {
+            if (estimateMillis(sizedRecords.get(index)) > deadline) {
+                oversizedFirst.add(index);
+            }
+        }
+        int oversized = oversizedFirst.size();
+        for (Integer index : order) {
+            if (estimateMillis(sizedRecords.get(index)) <= deadline) {
+                oversizedFirst.add(index);
+            }
+        }
+        order = oversizedFirst;
+        PriorityQueue<Long> workerFinishTimes = new PriorityQueue<>();
+        for (int i = 0; i < workers; i++) {
+            workerFinishTimes.add(0L);
+        }
+
+        List<Integer> scheduled = new ArrayList<>(records.size());
+        List<Integer> deferred = new ArrayList<>();
+        long makespan = 0;
+        for (Integer index : order) {
+            long start = workerFinishTimes.peek();
+            long finish = start + estimateMillis(sizedRecords.get(index));
+            if (finish > deadline && start > 0) {
+                deferred.add(index);
+                continue;
+            }
+
+            workerFinishTimes.poll();
+            workerFinishTimes.add(finish);
+            scheduled.add(index);
+            makespan = Math.max(makespan, finish);
+        }
+
+        if (oversized > 0) {
+            logger.warn("{} bundles cannot finish within a whole invocation of {} ms; starting them on idle workers "
+                    + "to be handed off when the time runs out", oversized, remainingMillis);
+        }
+        if (!deferred.isEmpty()) {
+            logger.warn("Deferring {} of {} bundles that cannot finish in the {} ms left", deferred.size(),
+                    records.size(), remainingMillis);
+        }
+        return new SchedulePlan(sizedRecords, scheduled, deferred, makespan);
+    }
+
+    /**
+     * Feeds the duration of a finished transfer into the throughput estimate.
+     */
+    public void recordTransfer(long sizeBytes, long elapsedMillis) {
+        long transferMillis = elapsedMillis - PER_BUNDLE_OVERHEAD_MILLIS;
+        if (sizeBytes <= 0 || transferMillis <= 0) {
+            return;
+        }
+        double observed = (double) sizeBytes / transferMillis;
+        bytesPerMilli = THROUGHPUT_SMOOTHING * observed + (1 - THROUGHPUT_SMOOTHING) * bytesPerMilli;
+    }
+
+    public long estimateMillis(BundleRecord record) {
+        return PER_BUNDLE_OVERHEAD_MILLIS + (long) (sizeForEstimate(record) / bytesPerMilli);
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    private static long sizeForEstimate(BundleRecord record) {
+        return record.hasKnownSize() ? record.getSize() : UNKNOWN_SIZE_ESTIMATE;
+    }
+
+    /**
+     * The records with their sizes filled in. The HEAD requests for all unknown sizes are started before any is
+     * waited for; a record whose size cannot be read keeps the estimate.
+     */
+    private List<BundleRecord> withKnownSizes(List<BundleRecord> records) {
+        List<CompletableFuture<ObjectMetadata>> sizeRequests = new ArrayList<>(records.size());
+        for (BundleRecord record : records) {
+            sizeRequests.add(record.hasKnownSize() || sizeClient == null ? null
+                    : sizePrefetcher.headObject(sizeClient, record.getBucket(), record.getKey()));
+        }
+
+        List<BundleRecord> sizedRecords = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            BundleRecord record = records.get(i);
+            CompletableFuture<ObjectMetadata> sizeRequest = sizeRequests.get(i);
+            if (sizeRequest == null) {
+                sizedRecords.add(record);
+                continue;
+            }
+
+            try {
+                sizedRecords.add(record.withSize(sizeRequest.join().getContentLength()));
+            } catch (CompletionException e) {
+                if (!(e.getCause() instanceof AmazonClientException)) {
+                    throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                }
+                logger.warn("Unable to read size of {}; estimating it for scheduling", record, e.getCause());
+                sizedRecords.add(record);
+            }
+        }
+        return sizedRecords;
+    }
+
+    /**
+     * The outcome of {@link #plan}: indexes into the planned list, in the order to start them, and the indexes of
+     * the deferred records.
+     */
+    public static final class SchedulePlan {
+        private final List<BundleRecord> records;
+        private final List<Integer> scheduledIndexes;
+        private final List<Integer> deferredIndexes;
+        private final long estimatedMillis;
+
+        SchedulePlan(List<BundleRecord> records, List<Integer> scheduledIndexes, List<Integer> deferredIndexes,
+                     long estimatedMillis) {
+            this.records = Collections.unmodifiableList(records);
+            this.scheduledIndexes = Collections.unmodifiableList(scheduledIndexes);
+            this.deferredIndexes = Collections.unmodifiableList(deferredIndexes);
+            this.estimatedMillis = estimatedMillis;
+        }
+
+        /**
+         * The planned records, in input order, with sizes filled in where a HEAD request found them.
+         */
+        public List<BundleRecord> getRecords() {
+            return records;
+        }
+
+        public List<Integer> getScheduledIndexes() {
+            return scheduledIndexes;
+        }
+
+        public List<Integer> getDeferredIndexes() {
+            return deferredIndexes;
+        }
+
+        public long getEstimatedMillis() {
+            return estimatedMillis;
+        }
+    }
+}
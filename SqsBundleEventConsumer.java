@@ -0,0 +1,245 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.SQSBatchResponse;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent.SQSMessage;
+import com.amazonaws.services.s3.event.S3EventNotification;
+import com.amazonaws.services.s3.event.S3EventNotification.S3EventNotificationRecord;
+import com.amazonaws.services.s3.event.S3EventNotification.S3ObjectEntity;
+import gherkin.deps.com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lambda handler for SQS batches of S3 event notifications. Every bundle in the batch is processed in
+ * parallel through {@link BatchTransferProcessor}, and only the messages with a failed bundle or an
+ * unreadable body are returned as batchItemFailures, so SQS redelivers just those instead of the whole
+ * batch. The event source mapping must have ReportBatchItemFailures enabled.
+ *
+ * Bundles deferred or handed off because the invocation is running out of time are continued by another
+ * invocation. With a continuation queue each of them is sent to it as a new S3 event and its message counts as
+ * processed; without one its message is reported as failed, so SQS redelivers it. A continuation of a transfer that
+ * has to start over carries its restart attempts, so {@link BatchTransferProcessor} can give up on it. Bundles that
+ * can never finish in one invocation are sent to the dead-letter queue when there is one and their message counts as
+ * processed; without one their message is reported as failed and reaches the redrive policy's dead-letter queue.
+ */
+public class SqsBundleEventConsumer implements RequestHandler<SQSEvent, SQSBatchResponse> {
+    private static final Logger logger = LoggerFactory.getLogger(SqsBundleEventConsumer.class);
+
+    private static final String OBJECT_CREATED_EVENT_PREFIX = "ObjectCreated:";
+    private static final String CONTINUATION_EVENT_NAME = OBJECT_CREATED_EVENT_PREFIX + "Continuation";
+    private static final String RESTART_ATTEMPTS_FIELD = "restartAttempts";
+
+    private final BatchTransferProcessor batchProcessor;
+    private final BundleEventQueue continuationQueue;
+    private final BundleEventQueue deadLetterQueue;
+
+    public SqsBundleEventConsumer() {
+        this(BatchTransferProcessor.fromEnvironment(new Cat3Cat1TransferUtils()));
+    }
+
+    public SqsBundleEventConsumer(BatchTransferProcessor batchProcessor) {
+        this(batchProcessor, null);
+    }
+
+    /**
+     * @param continuationQueue queue that unfinished bundles are sent to, or null to have SQS redeliver them
+     */
+    public SqsBundleEventConsumer(BatchTransferProcessor batchProcessor, BundleEventQueue continuationQueue) {
+        this(batchProcessor, continuationQueue, null);
+    }
+
+    /**
+     * @param continuationQueue queue that unfinished bundles are sent to, or null to have SQS redeliver them
+     * @param deadLetterQueue   queue that bundles too large for one invocation are sent to, or null to report their
+     *                          messages as failed
+     */
+    public SqsBundleEventConsumer(BatchTransferProcessor batchProcessor, BundleEventQueue continuationQueue,
+            BundleEventQueue deadLetterQueue) {
+        this.batchProcessor = batchProcessor;
+        this.continuationQueue = continuationQueue;
+        this.deadLetterQueue = deadLetterQueue;
+    }
+
+    @Override
+    public SQSBatchResponse handleRequest(SQSEvent event, Context context) {
+        List<SQSMessage> messages = event.getRecords() == null
+                ? Collections.<SQSMessage>emptyList() : event.getRecords();
+        List<BundleRecord> records = new ArrayList<>();
+        List<String> recordMessageIds = new ArrayList<>();
+        Set<String> failedMessageIds = new LinkedHashSet<>();
+
+        for (SQSMessage message : messages) {
+            try {
+                for (BundleRecord record : parseRecords(message.getBody())) {
+                    records.add(record);
+                    recordMessageIds.add(message.getMessageId());
+                }
+            } catch (RuntimeException e) {
+                logger.error("Unable to read S3 event from message {}", message.getMessageId(), e);
+                failedMessageIds.add(message.getMessageId());
+            }
+        }
+
+        long remainingMillis = context == null ? Long.MAX_VALUE : context.getRemainingTimeInMillis();
+        List<BundleResult> results = batchProcessor.process(records, remainingMillis);
+        Map<String, List<BundleRecord>> continuations = new LinkedHashMap<>();
+        Map<String, List<BundleRecord>> deadLetters = new LinkedHashMap<>();
+        for (int i = 0; i < results.size(); i++) {
+            BundleResult result = results.get(i);
+            if (continuationQueue != null && result.needsContinuation()) {
+                continuations.computeIfAbsent(recordMessageIds.get(i), id -> new ArrayList<>())
+                        .add(result.continuationRecord());
+            } else if (deadLetterQueue != null && result.isDeadLetter()) {
+                deadLetters.computeIfAbsent(recordMessageIds.get(i), id -> new ArrayList<>())
+                        .add(result.getRecord());
+            } else if (!result.isSuccessful()) {
+                failedMessageIds.add(recordMessageIds.get(i));
+            }
+        }
+        sendRecords(continuationQueue, "continuation", continuations, failedMessageIds);
+        sendRecords(deadLetterQueue, "dead letter", deadLetters, failedMessageIds);
+
+        List<SQSBatchResponse.BatchItemFailure> batchItemFailures = new ArrayList<>(failedMessageIds.size());
+        for (String messageId : failedMessageIds) {
+            batchItemFailures.add(new SQSBatchResponse.BatchItemFailure(messageId));
+        }
+        logger.info("Processed {} messages with {} bundles; {} messages failed", messages.size(), records.size(),
+                batchItemFailures.size());
+        return new SQSBatchResponse(batchItemFailures);
+    }
+
+    /**
+     * Receives one batch from {@code queue}, processes it and completes it, the way the Lambda SQS event source
+     * would. Returns the batch response, which has no failures when the queue was empty.
+     */
+    public SQSBatchResponse pollOnce(BundleEventQueue queue, int maxMessages) {
+        SQSEvent event = queue.receive(maxMessages);
+        SQSBatchResponse response = handleRequest(event, null);
+        queue.complete(event, response);
+        return response;
+    }
+
+    /**
+     * Sends the bundles of each message to {@code queue}, the continuation or the dead-letter queue. A message that
+     * is redelivered anyway sends nothing, so a bundle is never sent twice, and a message whose bundles cannot be
+     * sent is redelivered instead.
+     */
+    private void sendRecords(BundleEventQueue queue, String kind, Map<String, List<BundleRecord>> recordsByMessage,
+            Set<String> failedMessageIds) {
+        for (Map.Entry<String, List<BundleRecord>> entry : recordsByMessage.entrySet()) {
+            if (failedMessageIds.contains(entry.getKey())) {
+                continue;
+            }
+            try {
+                for (BundleRecord record : entry.getValue()) {
+                    queue.send(continuationMessage(record));
+                    logger.info("Sent {} for {} from message {}", kind, record, entry.getKey());
+                }
+            } catch (RuntimeException e) {
+                logger.error("Unable to send {} for message {}", kind, entry.getKey(), e);
+                failedMessageIds.add(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * An S3 event notification for {@code record} that {@link #parseRecords} reads back as the same bundle.
+     */
+    static String continuationMessage(BundleRecord record) {
+        Map<String, Object> object = new LinkedHashMap<>();
+        try {
+            object.put("key", URLEncoder.encode(record.getKey(), "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+        if (record.hasKnownSize()) {
+            object.put("size", record.getSize());
+        }
+        if (record.getVersionId() != null) {
+            object.put("versionId", record.getVersionId());
+        }
+        if (record.getETag() != null) {
+            object.put("eTag", record.getETag());
+        }
+        Map<String, Object> s3 = new LinkedHashMap<>();
+        s3.put("bucket", Collections.singletonMap("name", record.getBucket()));
+        s3.put("object", object);
+        Map<String, Object> eventRecord = new LinkedHashMap<>();
+        eventRecord.put("eventSource", "aws:s3");
+        eventRecord.put("eventName", CONTINUATION_EVENT_NAME);
+        eventRecord.put("s3", s3);
+        if (record.getRestartAttempts() > 0) {
+            eventRecord.put(RESTART_ATTEMPTS_FIELD, record.getRestartAttempts());
+        }
+        return new Gson().toJson(Collections.singletonMap("Records", Collections.singletonList(eventRecord)));
+    }
+
+    /**
+     * Reads the bundles of an S3 event notification. S3 test events have no records and records for events
+     * other than object creation are skipped.
+     */
+    static List<BundleRecord> parseRecords(String messageBody) {
+        S3EventNotification notification = S3EventNotification.parseJson(messageBody);
+        if (notification.getRecords() == null) {
+            return Collections.emptyList();
+        }
+
+        List<BundleRecord> records = new ArrayList<>(notification.getRecords().size());
+        List<?> rawRecords = null;
+        for (int i = 0; i < notification.getRecords().size(); i++) {
+            S3EventNotificationRecord record = notification.getRecords().get(i);
+            String eventName = record.getEventName();
+            if (eventName != null && !eventName.startsWith(OBJECT_CREATED_EVENT_PREFIX)) {
+                logger.info("Skipping {} event for s3:{}/{}", eventName, record.getS3().getBucket().getName(),
+                        record.getS3().getObject().getUrlDecodedKey());
+                continue;
+            }
+
+            int restartAttempts = 0;
+            if (CONTINUATION_EVENT_NAME.equals(eventName)) {
+                if (rawRecords == null) {
+                    rawRecords = rawRecords(messageBody);
+                }
+                restartAttempts = restartAttempts(rawRecords, i);
+            }
+
+            S3ObjectEntity object = record.getS3().getObject();
+            Long size = object.getSizeAsLong();
+            records.add(new BundleRecord(record.getS3().getBucket().getName(), object.getUrlDecodedKey(),
+                    size == null ? BundleRecord.UNKNOWN_SIZE : size, object.getVersionId(), object.geteTag(),
+                    restartAttempts));
+        }
+        return records;
+    }
+
+    /**
+     * The records of the notification as plain maps, for the fields of a continuation that
+     * {@link S3EventNotification} does not read.
+     */
+    private static List<?> rawRecords(String messageBody) {
+        Map<?, ?> body = new Gson().fromJson(messageBody, Map.class);
+        Object rawRecords = body == null ? null : body.get("Records");
+        return rawRecords instanceof List ? (List<?>) rawRecords : Collections.emptyList();
+    }
+
+    private static int restartAttempts(List<?> rawRecords, int index) {
+        if (index >= rawRecords.size() || !(rawRecords.get(index) instanceof Map)) {
+            return 0;
+        }
+        Object restartAttempts = ((Map<?, ?>) rawRecords.get(index)).get(RESTART_ATTEMPTS_FIELD);
+        return restartAttempts instanceof Number ? ((Number) restartAttempts).intValue() : 0;
+    }
+}
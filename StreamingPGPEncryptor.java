@@ -0,0 +1,315 @@
+package com.capitalone.gallery.utils;
+
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPEncryptedDataList;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.PGPObjectFactory;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PGP encryptor that works on streams instead of whole byte arrays, so a bundle can be encrypted
+ * while it is being downloaded and uploaded. It is used only when PGP_STREAMING_ENCRYPTION is true; see
+ * {@link BundleEncryptor}.
+ *
+ * Its key and algorithms are configured separately from {@link SimplePGPUtil}: the key resource by
+ * PGP_PUBLIC_KEY_PATH and the algorithms by PGP_SYMMETRIC_ALGORITHM (default AES_256), PGP_COMPRESSION_ALGORITHM
+ * (default ZIP) and PGP_INTEGRITY_PACKET (default true). Before it is used, {@link #isCompatibleWithDefault()}
+ * encrypts a probe with SimplePGPUtil and checks that both messages are for the same recipient key with the same
+ * integrity protection; the symmetric and compression algorithms are inside the encrypted data and cannot be
+ * compared that way.
+ *
+ * The BouncyCastle provider is registered once per container and the parsed recipient key is cached by
+ * {@link #fromClasspath()}, so per-bundle setup is only the session key and the packet generators. This cache
+ * covers only this encryptor; the default {@link SimplePGPUtilEncryptor} still parses its key per bundle.
+ */
+public class StreamingPGPEncryptor implements BundleEncryptor {
+    private static final Logger logger = LoggerFactory.getLogger(StreamingPGPEncryptor.class);
+
+    public static final String DEFAULT_PUBLIC_KEY_RESOURCE = "pgp_keys/public-key.asc";
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long KEY_REFRESH_CHECK_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Object keyCacheLock = new Object();
+    private static volatile CachedEncryptor cachedEncryptor;
+
+    static {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    private static final Map<String, Integer> SYMMETRIC_ALGORITHMS = new HashMap<>();
+    private static final Map<String, Integer> COMPRESSION_ALGORITHMS = new HashMap<>();
+
+    static {
+        SYMMETRIC_ALGORITHMS.put("AES_128", SymmetricKeyAlgorithmTags.AES_128);
+        SYMMETRIC_ALGORITHMS.put("AES_192", SymmetricKeyAlgorithmTags.AES_192);
+        SYMMETRIC_ALGORITHMS.put("AES_256", SymmetricKeyAlgorithmTags.AES_256);
+        SYMMETRIC_ALGORITHMS.put("CAST5", SymmetricKeyAlgorithmTags.CAST5);
+        SYMMETRIC_ALGORITHMS.put("TRIPLE_DES", SymmetricKeyAlgorithmTags.TRIPLE_DES);
+        COMPRESSION_ALGORITHMS.put("UNCOMPRESSED", CompressionAlgorithmTags.UNCOMPRESSED);
+        COMPRESSION_ALGORITHMS.put("ZIP", CompressionAlgorithmTags.ZIP);
+        COMPRESSION_ALGORITHMS.put("ZLIB", CompressionAlgorithmTags.ZLIB);
+        COMPRESSION_ALGORITHMS.put("BZIP2", CompressionAlgorithmTags.BZIP2);
+    }
+
+    private final PGPPublicKey encryptionKey;
+    private final int symmetricAlgorithm;
+    private final int compressionAlgorithm;
+    private final boolean withIntegrityPacket;
+    private volatile Boolean compatibleWithDefault;
+
+    public StreamingPGPEncryptor(PGPPublicKey encryptionKey) {
+        this(encryptionKey, SymmetricKeyAlgorithmTags.AES_256, CompressionAlgorithmTags.ZIP, true);
+    }
+
+    public StreamingPGPEncryptor(PGPPublicKey encryptionKey, int symmetricAlgorithm, int compressionAlgorithm,
+                                 boolean withIntegrityPacket) {
+        this.encryptionKey = encryptionKey;
+        this.symmetricAlgorithm = symmetricAlgorithm;
+        this.compressionAlgorithm = compressionAlgorithm;
+        this.withIntegrityPacket = withIntegrityPacket;
+    }
+
+    /**
+     * Returns an encryptor for the armored public key ring on the classpath. The resource path can be
+     * overridden with the PGP_PUBLIC_KEY_PATH environment variable.
+     *
+     * The parsed key is cached for the container. At most every few minutes the resource's last-modified
+     * time is checked and the key ring is re-read only if it changed, so callers can invoke this per bundle.
+     */
+    public static StreamingPGPEncryptor fromClasspath() throws IOException, PGPException {
+        String resourcePath = System.getenv("PGP_PUBLIC_KEY_PATH");
+        if (resourcePath == null || resourcePath.isEmpty()) {
+            resourcePath = DEFAULT_PUBLIC_KEY_RESOURCE;
+        }
+
+        CachedEncryptor current = cachedEncryptor;
+        if (current != null && current.isFreshFor(resourcePath)) {
+            return current.encryptor;
+        }
+
+        synchronized (keyCacheLock) {
+            current = cachedEncryptor;
+            if (current != null && current.isFreshFor(resourcePath)) {
+                return current.encryptor;
+            }
+
+            URL resource = StreamingPGPEncryptor.class.getClassLoader().getResource(resourcePath);
+            if (resource == null) {
+                throw new IOException("PGP public key resource not found: " + resourcePath);
+            }
+
+            long lastModified = lastModified(resource);
+            StreamingPGPEncryptor encryptor;
+            if (current != null && current.resourcePath.equals(resourcePath) && current.lastModified == lastModified) {
+                encryptor = current.encryptor;
+            } else {
+                try (InputStream is = resource.openStream()) {
+                    encryptor = new StreamingPGPEncryptor(readEncryptionKey(is),
+                            algorithmFromEnvironment("PGP_SYMMETRIC_ALGORITHM", "AES_256", SYMMETRIC_ALGORITHMS),
+                            algorithmFromEnvironment("PGP_COMPRESSION_ALGORITHM", "ZIP", COMPRESSION_ALGORITHMS),
+                            !"false".equalsIgnoreCase(System.getenv("PGP_INTEGRITY_PACKET")));
+                }
+                logger.info("Loaded PGP public key ring from {}", resourcePath);
+            }
+
+            cachedEncryptor = new CachedEncryptor(resourcePath, lastModified, encryptor);
+            return encryptor;
+        }
+    }
+
+    private static int algorithmFromEnvironment(String name, String defaultValue, Map<String, Integer> algorithms) {
+        String value = System.getenv(name);
+        String algorithm = value == null || value.trim().isEmpty() ? defaultValue : value.trim().toUpperCase();
+        Integer tag = algorithms.get(algorithm);
+        if (tag == null) {
+            throw new IllegalArgumentException(name + " must be one of " + algorithms.keySet() + ", not " + value);
+        }
+        return tag;
+    }
+
+    /**
+     * Returns true when a probe encrypted by {@link SimplePGPUtil} is for this encryptor's recipient key and has
+     * the same integrity protection, so CAT2 consumers can decrypt this encryptor's output with the key they use
+     * today. The result is computed once per encryptor; a probe that cannot be made counts as incompatible.
+     */
+    public boolean isCompatibleWithDefault() {
+        Boolean compatible = compatibleWithDefault;
+        if (compatible == null) {
+            try {
+                ByteArrayOutputStream probe = new ByteArrayOutputStream();
+                SimplePGPUtilEncryptor.INSTANCE.encrypt(new ByteArrayInputStream(new byte[1024]), probe,
+                        "compatibility-probe");
+                compatible = isCompatibleWith(probe.toByteArray());
+            } catch (Exception e) {
+                logger.error("Unable to compare streaming encryption with SimplePGPUtil", e);
+                compatible = false;
+            }
+            compatibleWithDefault = compatible;
+        }
+        return compatible;
+    }
+
+    /**
+     * Returns true when {@code encryptedMessage} is encrypted for this encryptor's key with the same integrity
+     * protection.
+     */
+    @SuppressWarnings("deprecation")
+    boolean isCompatibleWith(byte[] encryptedMessage) throws IOException {
+        PGPObjectFactory objectFactory = new PGPObjectFactory(
+                PGPUtil.getDecoderStream(new ByteArrayInputStream(encryptedMessage)), new JcaKeyFingerprintCalculator());
+        Object packet;
+        while ((packet = objectFactory.nextObject()) != null) {
+            if (!(packet instanceof PGPEncryptedDataList)) {
+                continue;
+            }
+            for (PGPEncryptedData encryptedData : (PGPEncryptedDataList) packet) {
+                if (encryptedData instanceof PGPPublicKeyEncryptedData
+                        && ((PGPPublicKeyEncryptedData) encryptedData).getKeyID() == encryptionKey.getKeyID()
+                        && encryptedData.isIntegrityProtected() == withIntegrityPacket) {
+                    return true;
+                }
+            }
+            logger.error("SimplePGPUtil encrypts for a different key or integrity setting than key {}",
+                    Long.toHexString(encryptionKey.getKeyID()));
+            return false;
+        }
+        logger.error("SimplePGPUtil output has no encrypted data packet");
+        return false;
+    }
+
+    private static long lastModified(URL resource) {
+        try {
+            URLConnection connection = resource.openConnection();
+            connection.setUseCaches(false);
+            return connection.getLastModified();
+        } catch (IOException e) {
+            logger.warn("Unable to read last-modified time of {}", resource, e);
+            return 0L;
+        }
+    }
+
+    static PGPPublicKey readEncryptionKey(InputStream keyStream) throws IOException, PGPException {
+        PGPPublicKeyRingCollection keyRings = new PGPPublicKeyRingCollection(PGPUtil.getDecoderStream(keyStream),
+                new JcaKeyFingerprintCalculator());
+
+        Iterator<PGPPublicKeyRing> ringIterator = keyRings.getKeyRings();
+        while (ringIterator.hasNext()) {
+            Iterator<PGPPublicKey> keyIterator = ringIterator.next().getPublicKeys();
+            while (keyIterator.hasNext()) {
+                PGPPublicKey key = keyIterator.next();
+                if (key.isEncryptionKey()) {
+                    logger.info("Using PGP encryption key {}", Long.toHexString(key.getKeyID()));
+                    return key;
+                }
+            }
+        }
+
+        throw new PGPException("No encryption key found in PGP public key ring");
+    }
+
+    /**
+     * Returns a stream that encrypts everything written to it into {@code target}. Closing the
+     * returned stream finishes the PGP packets and then closes {@code target}.
+     */
+    public OutputStream open(OutputStream target, String fileName) throws IOException, PGPException {
+        // a fresh SecureRandom per bundle so session keys are never shared across a SnapStart restore
+        PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator(
+                new JcePGPDataEncryptorBuilder(symmetricAlgorithm)
+                        .setWithIntegrityPacket(withIntegrityPacket)
+                        .setSecureRandom(new SecureRandom())
+                        .setProvider(BouncyCastleProvider.PROVIDER_NAME));
+        encryptedDataGenerator.addMethod(new JcePublicKeyKeyEncryptionMethodGenerator(encryptionKey)
+                .setProvider(BouncyCastleProvider.PROVIDER_NAME));
+
+        OutputStream encryptedOut = encryptedDataGenerator.open(target, new byte[BUFFER_SIZE]);
+        PGPCompressedDataGenerator compressedDataGenerator = new PGPCompressedDataGenerator(compressionAlgorithm);
+        OutputStream compressedOut = compressedDataGenerator.open(encryptedOut, new byte[BUFFER_SIZE]);
+        PGPLiteralDataGenerator literalDataGenerator = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literalDataGenerator.open(compressedOut, PGPLiteralData.BINARY, fileName, new Date(),
+                new byte[BUFFER_SIZE]);
+
+        return new FilterOutputStream(literalOut) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                literalDataGenerator.close();
+                compressedDataGenerator.close();
+                encryptedDataGenerator.close();
+                target.close();
+            }
+        };
+    }
+
+    private static final class CachedEncryptor {
+        private final String resourcePath;
+        private final long lastModified;
+        private final long nextCheckAt;
+        private final StreamingPGPEncryptor encryptor;
+
+        CachedEncryptor(String resourcePath, long lastModified, StreamingPGPEncryptor encryptor) {
+            this.resourcePath = resourcePath;
+            this.lastModified = lastModified;
+            this.nextCheckAt = System.currentTimeMillis() + KEY_REFRESH_CHECK_MILLIS;
+            this.encryptor = encryptor;
+        }
+
+        boolean isFreshFor(String path) {
+            return resourcePath.equals(path) && System.currentTimeMillis() < nextCheckAt;
+        }
+    }
+
+    /**
+     * Encrypts {@code source} into {@code target}, closing {@code target} once the PGP packets are complete.
+     */
+    @Override
+    public long encrypt(InputStream source, OutputStream target, String fileName) throws IOException, PGPException {
+        OutputStream encryptingStream = open(target, fileName);
+        long bytesRead = IOUtils.copyLarge(source, encryptingStream);
+        encryptingStream.close();
+        return bytesRead;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+}
@@ -0,0 +1,119 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.services.s3.model.PartETag;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Progress of one multipart transfer: which source version is being copied, the multipart upload it is going
+ * into, the parts completed so far (a contiguous run from part 1) and the source offset that follows them.
+ * Immutable; progress is recorded by saving a new checkpoint with {@link #withParts}.
+ */
+public final class TransferCheckpoint {
+    private final String sourceBucket;
+    private final String sourceKey;
+    private final String sourceETag;
+    private final long contentLength;
+    private final String targetBucket;
+    private final String targetKey;
+    private final boolean encrypted;
+    private final int partSize;
+    private final String uploadId;
+    private final List<CompletedPart> completedParts;
+    private final long sourceOffset;
+
+    public TransferCheckpoint(String sourceBucket, String sourceKey, String sourceETag, long contentLength,
+                              String targetBucket, String targetKey, boolean encrypted, int partSize, String uploadId,
+                              List<PartETag> completedParts, long sourceOffset) {
+        this.sourceBucket = sourceBucket;
+        this.sourceKey = sourceKey;
+        this.sourceETag = sourceETag;
+        this.contentLength = contentLength;
+        this.targetBucket = targetBucket;
+        this.targetKey = targetKey;
+        this.encrypted = encrypted;
+        this.partSize = partSize;
+        this.uploadId = uploadId;
+        List<CompletedPart> parts = new ArrayList<>(completedParts.size());
+        for (PartETag partETag : completedParts) {
+            parts.add(new CompletedPart(partETag.getPartNumber(), partETag.getETag()));
+        }
+        this.completedParts = Collections.unmodifiableList(parts);
+        this.sourceOffset = sourceOffset;
+    }
+
+    public TransferCheckpoint withParts(List<PartETag> parts, long newSourceOffset) {
+        return new TransferCheckpoint(sourceBucket, sourceKey, sourceETag, contentLength, targetBucket, targetKey,
+                encrypted, partSize, uploadId, parts, newSourceOffset);
+    }
+
+    public TransferCheckpoint withUploadId(String newUploadId) {
+        return new TransferCheckpoint(sourceBucket, sourceKey, sourceETag, contentLength, targetBucket, targetKey,
+                encrypted, partSize, newUploadId, getPartETags(), sourceOffset);
+    }
+
+    /**
+     * Returns true when this checkpoint was taken for the same source version and the same way of transferring
+     * it, so its parts can be reused.
+     */
+    public boolean isResumableFor(String currentSourceETag, long currentContentLength, boolean currentlyEncrypted,
+                                  int currentPartSize) {
+        return !encrypted && !currentlyEncrypted
+                && Objects.equals(sourceETag, currentSourceETag)
+                && contentLength == currentContentLength
+                && partSize == currentPartSize;
+    }
+
+    public String getSourceBucket() {
+        return sourceBucket;
+    }
+
+    public String getSourceKey() {
+        return sourceKey;
+    }
+
+    public String getTargetBucket() {
+        return targetBucket;
+    }
+
+    public String getTargetKey() {
+        return targetKey;
+    }
+
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public List<PartETag> getPartETags() {
+        List<PartETag> partETags = new ArrayList<>(completedParts.size());
+        for (CompletedPart part : completedParts) {
+            partETags.add(new PartETag(part.partNumber, part.eTag));
+        }
+        return partETags;
+    }
+
+    public long getSourceOffset() {
+        return sourceOffset;
+    }
+
+    private static final class CompletedPart {
+        private final int partNumber;
+        private final String eTag;
+
+        CompletedPart(int partNumber, String eTag) {
+            this.partNumber = partNumber;
+            this.eTag = eTag;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.capitalone.gallery.utils;
+
+/**
+ * Where {@link ResumableTransfer} keeps the checkpoints of unfinished multipart transfers, keyed by target object.
+ */
+public interface TransferCheckpointStore {
+
+    /**
+     * Returns the checkpoint for the transfer into {@code targetBucket}/{@code targetKey}, or null when there is none.
+     */
+    TransferCheckpoint load(String targetBucket, String targetKey);
+
+    void save(TransferCheckpoint checkpoint);
+
+    void delete(String targetBucket, String targetKey);
+
+    /**
+     * Returns true when checkpoints outlive the container, so a retry or continuation that lands on another
+     * container still finds them. Transfers are only resumed and handed off with a durable store.
+     */
+    boolean isDurable();
+}
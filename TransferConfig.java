@@ -0,0 +1,151 @@
+package com.capitalone.gallery.utils;
+
+import com.capitalone.gallery.utils.Cat3Cat1TransferUtils.TagBasedAction;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of everything the transfer needs from the environment, resolved and validated once
+ * at cold start so that a misconfigured Lambda fails before any bytes move instead of part way through a
+ * transfer.
+ */
+public final class TransferConfig {
+    public static final String CAT2_TARGET_PREFIX = "ASVAWSIMAGING/CAT3_BUNDLE/";
+
+    private static volatile TransferConfig environmentConfig;
+
+    private final TagBasedAction tagBasedAction;
+    private final String cat2Bucket;
+    private final String voltronBucket;
+    private final String voltronPrefix;
+    private final String archiveBucket;
+    private final boolean voltronServerSideCopy;
+    private final FilePatternSet transferIgnorePatterns;
+    private final FilePatternSet encryptionIgnorePatterns;
+
+    private TransferConfig(TagBasedAction tagBasedAction, String cat2Bucket, String voltronBucket,
+                           String voltronPrefix, String archiveBucket, boolean voltronServerSideCopy,
+                           FilePatternSet transferIgnorePatterns, FilePatternSet encryptionIgnorePatterns) {
+        this.tagBasedAction = tagBasedAction;
+        this.cat2Bucket = cat2Bucket;
+        this.voltronBucket = voltronBucket;
+        this.voltronPrefix = voltronPrefix;
+        this.archiveBucket = archiveBucket;
+        this.voltronServerSideCopy = voltronServerSideCopy;
+        this.transferIgnorePatterns = transferIgnorePatterns;
+        this.encryptionIgnorePatterns = encryptionIgnorePatterns;
+    }
+
+    /**
+     * Returns the config for this container's environment, resolving it on first use.
+     */
+    public static TransferConfig get() {
+        TransferConfig config = environmentConfig;
+        if (config == null) {
+            synchronized (TransferConfig.class) {
+                config = environmentConfig;
+                if (config == null) {
+                    config = fromEnvironment(System.getenv());
+                    environmentConfig = config;
+                }
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Resolves and validates the config from the given environment variables. Throws
+     * IllegalStateException listing every missing or invalid value.
+     */
+    public static TransferConfig fromEnvironment(Map<String, String> env) {
+        List<String> problems = new ArrayList<>();
+
+        TagBasedAction tagBasedAction = null;
+        String actionForLambda = env.get("TAG_BASED_ACTION");
+        if (isBlank(actionForLambda)) {
+            problems.add("TAG_BASED_ACTION is not set");
+        } else {
+            try {
+                tagBasedAction = TagBasedAction.valueOf(actionForLambda.trim());
+            } catch (IllegalArgumentException e) {
+                problems.add("TAG_BASED_ACTION has unknown value " + actionForLambda);
+            }
+        }
+
+        String cat2Bucket = env.get("CAT_2_BUCKET");
+        String voltronBucket = env.get("VOLTRON_BUCKET");
+        String voltronPrefix = env.get("VOLTRON_PREFIX");
+        String archiveBucket = env.get("ARCHIVE_BUCKET");
+        boolean fanOut = tagBasedAction == TagBasedAction.FAN_OUT;
+        if ((tagBasedAction == TagBasedAction.CAT2_COPY || fanOut) && isBlank(cat2Bucket)) {
+            problems.add("CAT_2_BUCKET is required for " + tagBasedAction);
+        }
+        if ((tagBasedAction == TagBasedAction.VOLTRON_COPY || fanOut) && isBlank(voltronBucket)) {
+            problems.add("VOLTRON_BUCKET is required for " + tagBasedAction);
+        }
+        if ((tagBasedAction == TagBasedAction.VOLTRON_COPY || fanOut) && voltronPrefix == null) {
+            problems.add("VOLTRON_PREFIX is required for " + tagBasedAction);
+        }
+
+        String voltronTransferMode = env.get("VOLTRON_TRANSFER_MODE");
+        if (!isBlank(voltronTransferMode) && !"COPY".equals(voltronTransferMode)
+                && !"STREAM".equals(voltronTransferMode)) {
+            problems.add("VOLTRON_TRANSFER_MODE must be COPY or STREAM, was " + voltronTransferMode);
+        }
+
+        if (!problems.isEmpty()) {
+            throw new IllegalStateException("Invalid transfer configuration: " + String.join("; ", problems));
+        }
+
+        return new TransferConfig(tagBasedAction, cat2Bucket, voltronBucket, voltronPrefix,
+                isBlank(archiveBucket) ? null : archiveBucket.trim(), !"STREAM".equals(voltronTransferMode),
+                FilePatternSet.forResource(FilePatternSet.IGNORE_TRANSFER_PATTERNS),
+                FilePatternSet.forResource(FilePatternSet.IGNORE_ENCRYPTION_PATTERNS));
+    }
+
+    public TagBasedAction getTagBasedAction() {
+        return tagBasedAction;
+    }
+
+    public String getCat2Bucket() {
+        return cat2Bucket;
+    }
+
+    public String getVoltronBucket() {
+        return voltronBucket;
+    }
+
+    /**
+     * The bucket a fan-out also archives bundles to, under their original key, or null when there is none.
+     */
+    public String getArchiveBucket() {
+        return archiveBucket;
+    }
+
+    public boolean isVoltronServerSideCopy() {
+        return voltronServerSideCopy;
+    }
+
+    public FilePatternSet getTransferIgnorePatterns() {
+        return transferIgnorePatterns;
+    }
+
+    public FilePatternSet getEncryptionIgnorePatterns() {
+        return encryptionIgnorePatterns;
+    }
+
+    public String cat2TargetKey(String sourceKey) {
+        return CAT2_TARGET_PREFIX + Paths.get(sourceKey).getFileName().toString();
+    }
+
+    public String voltronTargetKey(String sourceKey) {
+        return Paths.get(voltronPrefix + Paths.get(sourceKey).getFileName().toString()).toString();
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+}
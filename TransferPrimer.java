@@ -0,0 +1,111 @@
+package com.capitalone.gallery.utils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.HeadBucketRequest;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import org.apache.commons.io.IOUtils;
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * SnapStart/CRaC hooks that warm the transfer path before the snapshot is taken and reconnect after it is
+ * restored, so the first bundle of a restored container runs at warm-path latency.
+ *
+ * Before the checkpoint the config is resolved, the pattern sets are compiled, both pooled S3 clients are built,
+ * the PGP key is parsed and a small in-memory payload is encrypted and "uploaded" to a discarding client.
+ * No real bucket is touched. After restore the CAT2 session credentials are renewed and the target bucket is
+ * probed with a HEAD request so the clients open fresh connections instead of reusing ones that did not
+ * survive the snapshot.
+ */
+public final class TransferPrimer implements Resource {
+    private static final Logger logger = LoggerFactory.getLogger(TransferPrimer.class);
+
+    private static final TransferPrimer INSTANCE = new TransferPrimer();
+    private static volatile boolean registered;
+
+    private TransferPrimer() {
+    }
+
+    /**
+     * Registers the priming hooks with the global CRaC context. Safe to call more than once; the instance is
+     * held statically because the context only keeps weak references to its resources.
+     */
+    public static synchronized void register() {
+        if (!registered) {
+            Core.getGlobalContext().register(INSTANCE);
+            registered = true;
+        }
+    }
+
+    @Override
+    public void beforeCheckpoint(Context<? extends Resource> context) throws Exception {
+        long start = System.currentTimeMillis();
+
+        TransferConfig config = TransferConfig.get();
+        S3ClientPool.getSourceClient();
+        S3ClientPool.getCat2Client();
+        new Cat3Cat1TransferUtils(config).prime(new DiscardingAmazonS3());
+
+        logger.info("Transfer path primed for checkpoint in {} ms", System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void afterRestore(Context<? extends Resource> context) {
+        S3ClientPool.refreshCredentials();
+
+        TransferConfig config = TransferConfig.get();
+        switch (config.getTagBasedAction()) {
+            case CAT2_COPY:
+                reconnect(S3ClientPool.getCat2Client(), config.getCat2Bucket());
+                break;
+            case VOLTRON_COPY:
+                reconnect(S3ClientPool.getSourceClient(), config.getVoltronBucket());
+                break;
+            case FAN_OUT:
+                reconnect(S3ClientPool.getCat2Client(), config.getCat2Bucket());
+                reconnect(S3ClientPool.getSourceClient(), config.getVoltronBucket());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void reconnect(AmazonS3 amazonS3, String bucket) {
+        try {
+            amazonS3.headBucket(new HeadBucketRequest(bucket));
+            logger.info("Re-established connection to s3:{} after restore", bucket);
+        } catch (AmazonServiceException e) {
+            // S3 answered, so the connection is open even though the HEAD itself was refused
+            logger.info("Re-established connection to s3:{} after restore (HEAD returned {})", bucket,
+                    e.getStatusCode());
+        } catch (AmazonClientException e) {
+            logger.warn("Unable to pre-connect to s3:{} after restore; first request will connect", bucket, e);
+        }
+    }
+
+    /**
+     * In-memory stand-in for S3 used while priming. It drains and discards single-part uploads, which is all
+     * the priming payload needs.
+     */
+    private static final class DiscardingAmazonS3 extends AbstractAmazonS3 {
+        @Override
+        public PutObjectResult putObject(PutObjectRequest putObjectRequest) {
+            try (InputStream content = putObjectRequest.getInputStream()) {
+                IOUtils.skip(content, Long.MAX_VALUE);
+            } catch (IOException e) {
+                throw new AmazonClientException("Unable to drain priming payload", e);
+            }
+            return new PutObjectResult();
+        }
+    }
+}